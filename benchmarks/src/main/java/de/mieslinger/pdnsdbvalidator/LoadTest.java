@@ -0,0 +1,137 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * End-to-end throughput of the validator without production systems: App
+ * runs in this JVM against a SyntheticPdnsDb and a StubDnsServer.
+ *
+ *   java -Xmx2g -cp target/benchmarks.jar de.mieslinger.pdnsdbvalidator.LoadTest \
+ *       zones=1000000 recordsPerZone=8 latencyMillis=5 loss=0.01 scanMode=stream
+ *
+ * zones, recordsPerZone, seed, latencyMillis, loss (share of dropped UDP
+ * queries), delegatedShare (zones whose SOA answer matches, their records
+ * are checked) and workDir set up the test; every other key=value is put
+ * into the validator's properties. Reports domains/s, p50/p99 of the time
+ * per domain and the peak heap (sampled every 100ms).
+ *
+ * user.home is moved to workDir, so log, checkpoint and state files of the
+ * run end up there.
+ *
+ * @author mieslingert
+ */
+public class LoadTest {
+
+    public static void main(String[] args) throws Exception {
+        Properties test = new Properties();
+        test.setProperty("zones", "100000");
+        test.setProperty("recordsPerZone", "8");
+        test.setProperty("seed", "42");
+        test.setProperty("latencyMillis", "2");
+        test.setProperty("loss", "0");
+        test.setProperty("delegatedShare", "0.9");
+        test.setProperty("workDir", Files.createTempDirectory("pdnsdbvalidator-loadtest").toString());
+        Properties validator = new Properties();
+        validator.setProperty("scanMode", "byId");
+        validator.setProperty("dnsCacheSize", "0");
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 1) {
+                System.out.println("usage: LoadTest [key=value ...]");
+                System.exit(1);
+            }
+            String key = arg.substring(0, eq);
+            (test.containsKey(key) ? test : validator).setProperty(key, arg.substring(eq + 1));
+        }
+        int zones = Integer.parseInt(test.getProperty("zones"));
+        File workDir = new File(test.getProperty("workDir"));
+        workDir.mkdirs();
+
+        SyntheticPdnsDb db = new SyntheticPdnsDb(new File(workDir, "db"));
+        StubDnsServer dns = null;
+        int rc = 1;
+        try {
+            long start = System.nanoTime();
+            db.start();
+            db.createSchema();
+            long records = db.fill(zones, Integer.parseInt(test.getProperty("recordsPerZone")), Long.parseLong(test.getProperty("seed")));
+            System.out.printf("%d zones, %d records loaded in %.1fs%n", zones, records, (System.nanoTime() - start) / 1e9);
+
+            dns = new StubDnsServer(Integer.parseInt(test.getProperty("latencyMillis")),
+                    Double.parseDouble(test.getProperty("loss")), Double.parseDouble(test.getProperty("delegatedShare")));
+
+            validator.setProperty("jdbcUrl", db.getJdbcUrl());
+            validator.setProperty("dbUser", db.getUser());
+            validator.setProperty("dbPass", "");
+            validator.setProperty("recursor", "127.0.0.1");
+            validator.setProperty("dnsPort", Integer.toString(dns.getPort()));
+            File config = new File(workDir, "validator.properties");
+            try (OutputStream out = new FileOutputStream(config)) {
+                validator.store(out, "LoadTest");
+            }
+            // before the first validator class is loaded, DataBase reads them once
+            System.setProperty("pdnsdbvalidator.config", config.getPath());
+            System.setProperty("user.home", workDir.getPath());
+
+            HeapSampler heap = new HeapSampler();
+            Thread th = new Thread(heap);
+            th.setName("heap-sampler");
+            th.setDaemon(true);
+            th.start();
+
+            start = System.nanoTime();
+            rc = App.run(new String[0]);
+            double secs = (System.nanoTime() - start) / 1e9;
+            heap.stop();
+
+            Metrics metrics = Metrics.get();
+            long checked = metrics.getCount(Metrics.DOMAINS_CHECKED);
+            LatencyHistogram perDomain = metrics.stage(Metrics.DOMAIN_TOTAL);
+            System.out.println("---- load test " + validator);
+            System.out.printf("domains checked   %d in %.1fs, %.0f domains/s%n", checked, secs, checked / secs);
+            System.out.printf("time per domain   p50 %dus p99 %dus max %dus%n",
+                    perDomain.percentile(50), perDomain.percentile(99), perDomain.getMaxMicros());
+            System.out.printf("peak heap         %d MB%n", heap.peak >> 20);
+            System.out.printf("stub dns          %d queries, %d dropped%n", dns.getQueries(), dns.getDropped());
+            System.out.printf("broken markers    %d%n", db.countBroken());
+        } finally {
+            if (dns != null) {
+                dns.close();
+            }
+            db.stop();
+        }
+        System.exit(rc);
+    }
+
+    private static class HeapSampler implements Runnable {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile boolean keepOnRunning = true;
+        private volatile long peak = 0;
+
+        public void run() {
+            while (keepOnRunning) {
+                peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        void stop() {
+            keepOnRunning = false;
+            peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.Random;
+
+/**
+ * Generated records rows as PowerDNS stores them (no trailing dots, SRV
+ * priority in prio). The seed is fixed, so every run parses the same corpus.
+ *
+ * "mixed" follows the type distribution of a typical hosting database:
+ * mostly A records, then MX, TXT, AAAA and NS, one SOA per zone.
+ *
+ * @author mieslingert
+ */
+public class RecordCorpus {
+
+    public static final String MIXED = "mixed";
+
+    private static final String[] MIXED_TYPES = {"A", "AAAA", "MX", "TXT", "NS", "SOA", "SRV", "CAA"};
+    private static final int[] MIXED_WEIGHTS = {40, 12, 12, 12, 10, 6, 5, 3};
+
+    private static final String[] LABELS = {"www", "mail", "shop", "api", "cdn", "dev", "vpn", "blog"};
+    private static final String[] CAA_TAGS = {"issue", "issuewild", "iodef"};
+
+    private final Random rnd;
+
+    public RecordCorpus(long seed) {
+        this.rnd = new Random(seed);
+    }
+
+    public Zone.Row[] generate(String type, int count) {
+        Zone.Row[] rows = new Zone.Row[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = row(i, MIXED.equals(type) ? mixedType() : type);
+        }
+        return rows;
+    }
+
+    /**
+     * The rows of zone i: its SOA, an NS at the apex and count - 1 other
+     * records below the zone name, ids from firstId on.
+     */
+    public Zone.Row[] zone(int i, int count, long firstId) {
+        String zone = zoneName(i);
+        Zone.Row[] rows = new Zone.Row[count + 1];
+        rows[0] = new Zone.Row(firstId, zone, 86400, "SOA", 0, soaContent(i));
+        if (count > 0) {
+            rows[1] = new Zone.Row(firstId + 1, zone, 86400, "NS", 0, nsContent(i));
+        }
+        for (int r = 2; r <= count; r++) {
+            String type = mixedType();
+            while ("SOA".equals(type)) {
+                type = mixedType();
+            }
+            rows[r] = row(firstId + r, type, zone);
+        }
+        return rows;
+    }
+
+    public String zoneName(int i) {
+        return "zone" + i + (i % 3 == 0 ? ".de" : ".com");
+    }
+
+    public String soaContent(int i) {
+        return nsContent(i) + " hostmaster.hoster.net " + (2019010100L + i % 100)
+                + " 10800 3600 604800 3600";
+    }
+
+    /**
+     * the name server of zone i, the SOA primary
+     */
+    public String nsContent(int i) {
+        return "ns" + (1 + i % 2) + ".hoster.net";
+    }
+
+    private String mixedType() {
+        int total = 0;
+        for (int w : MIXED_WEIGHTS) {
+            total += w;
+        }
+        int pick = rnd.nextInt(total);
+        for (int i = 0; i < MIXED_WEIGHTS.length; i++) {
+            pick -= MIXED_WEIGHTS[i];
+            if (pick < 0) {
+                return MIXED_TYPES[i];
+            }
+        }
+        return "A";
+    }
+
+    private Zone.Row row(long id, String type) {
+        return row(id, type, zoneName(rnd.nextInt(100000)));
+    }
+
+    private Zone.Row row(long id, String type, String zone) {
+        String host = rnd.nextBoolean() ? zone : LABELS[rnd.nextInt(LABELS.length)] + "." + zone;
+        long ttl = rnd.nextBoolean() ? 3600 : 86400;
+        switch (type) {
+            case "NS":
+                return new Zone.Row(id, zone, 86400, type, 0, "ns" + (1 + rnd.nextInt(3)) + ".hoster.net");
+            case "MX":
+                return new Zone.Row(id, zone, ttl, type, 10 * (1 + rnd.nextInt(2)), "mx0" + (1 + rnd.nextInt(2)) + ".hoster.net");
+            case "SOA":
+                return new Zone.Row(id, zone, 86400, type, 0, soaContent(rnd.nextInt(1000)));
+            case "SRV":
+                return new Zone.Row(id, "_sip._tcp." + zone, ttl, type, 10, (5 * rnd.nextInt(20)) + " 5060 sip." + zone);
+            case "TXT":
+                return new Zone.Row(id, host, ttl, type, 0, txtContent());
+            case "CAA":
+                return new Zone.Row(id, zone, ttl, type, 0, "0 " + CAA_TAGS[rnd.nextInt(CAA_TAGS.length)] + " \"letsencrypt.org\"");
+            case "A":
+                return new Zone.Row(id, host, ttl, type, 0,
+                        (rnd.nextInt(223) + 1) + "." + rnd.nextInt(256) + "." + rnd.nextInt(256) + "." + (rnd.nextInt(254) + 1));
+            case "AAAA":
+                return new Zone.Row(id, host, ttl, type, 0,
+                        "2001:db8:" + Integer.toHexString(rnd.nextInt(0x10000)) + "::" + Integer.toHexString(rnd.nextInt(0x10000)));
+            default:
+                throw new IllegalArgumentException("no generator for type " + type);
+        }
+    }
+
+    private String txtContent() {
+        int kind = rnd.nextInt(10);
+        if (kind < 6) {
+            return "v=spf1 include:_spf.hoster.net ~all";
+        }
+        if (kind < 9) {
+            // DKIM key, quoted and split in strings
+            return "\"v=DKIM1; k=rsa; \" \"p=" + base64(200) + "\"";
+        }
+        // unquoted, longer than one string
+        return "google-site-verification=" + base64(300);
+    }
+
+    private String base64(int len) {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder(len);
+        for (int i = 0; i < len; i++) {
+            sb.append(chars.charAt(rnd.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of parsing one record, per type and for the mixed distribution.
+ * parse: the ResourceRecord constructor (new parser, no name cache).
+ * parseReused: one RecordParser with name cache, as used by the workers.
+ * One operation is one record. Run with -prof gc for the allocation rate.
+ *
+ * @author mieslingert
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResourceRecordBenchmark {
+
+    static final int CORPUS_SIZE = 4096;
+
+    @Param({"NS", "MX", "SOA", "SRV", "TXT", "CAA", "A", "AAAA", RecordCorpus.MIXED})
+    public String type;
+
+    private Zone.Row[] rows;
+    private DnsClient resolver;
+    private RecordParser parser;
+
+    @Setup
+    public void setup() {
+        rows = new RecordCorpus(42).generate(type, CORPUS_SIZE);
+        resolver = new StubDnsClient();
+        parser = new RecordParser(resolver, 10000);
+        // a parser which fails on the corpus would only measure the exception path
+        for (Zone.Row row : rows) {
+            ResourceRecord r = new ResourceRecord(row.getName(), row.getTtl(), row.getType(), row.getPrio(), row.getContent(), resolver);
+            if (r.getRc() != 0) {
+                throw new IllegalStateException(row.getType() + " " + row.getContent() + ": " + r.getMessage());
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public void parse(Blackhole bh) {
+        for (Zone.Row row : rows) {
+            bh.consume(new ResourceRecord(row.getName(), row.getTtl(), row.getType(), row.getPrio(), row.getContent(), resolver));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public void parseReused(Blackhole bh) {
+        for (Zone.Row row : rows) {
+            bh.consume(parser.parse(row.getName(), row.getTtl(), row.getType(), row.getPrio(), row.getContent()).getRecord());
+        }
+    }
+}
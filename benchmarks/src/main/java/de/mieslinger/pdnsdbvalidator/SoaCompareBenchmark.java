@@ -0,0 +1,68 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.SOARecord;
+
+/**
+ * Cost of the delegation check per zone: the field count check of the SOA
+ * content from the DB (as checkZone does) and the comparison with the SOA
+ * answer. Every fourth answer has another serial, as after an unpublished
+ * change.
+ *
+ * @author mieslingert
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SoaCompareBenchmark {
+
+    static final int CORPUS_SIZE = 4096;
+
+    private String[] soaContents;
+    private SOARecord[] answers;
+    private RecordParser parser;
+
+    @Setup
+    public void setup() throws Exception {
+        RecordCorpus corpus = new RecordCorpus(42);
+        parser = new RecordParser(new StubDnsClient(), 0);
+        soaContents = new String[CORPUS_SIZE];
+        answers = new SOARecord[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            soaContents[i] = corpus.soaContent(i);
+            String[] f = soaContents[i].split(" ");
+            long serial = Long.parseLong(f[2]) + (i % 4 == 0 ? 1 : 0);
+            answers[i] = new SOARecord(new Name(corpus.zoneName(i) + "."), DClass.IN, 86400,
+                    new Name(f[0] + "."), new Name(f[1] + "."), serial,
+                    Long.parseLong(f[3]), Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public void compare(Blackhole bh) {
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            bh.consume(parser.fieldCount(soaContents[i]) == 7 && parser.soaMatches(soaContents[i], answers[i]));
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.CompletableFuture;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+
+/**
+ * Resolver for benchmarks: every query is answered at once with NOERROR and
+ * one TXT record, so the TXT check in ResourceRecord passes without network.
+ *
+ * @author mieslingert
+ */
+public class StubDnsClient implements DnsClient {
+
+    public CompletableFuture<Message> sendAsync(Message query) {
+        Record question = query.getQuestion();
+        Message answer = new Message(query.getHeader().getID());
+        answer.addRecord(question, Section.QUESTION);
+        answer.addRecord(new TXTRecord(question.getName(), DClass.IN, 300, "stub"), Section.ANSWER);
+        return CompletableFuture.completedFuture(answer);
+    }
+
+    public void shutdown() {
+    }
+}
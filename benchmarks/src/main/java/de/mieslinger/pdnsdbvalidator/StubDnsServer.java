@@ -0,0 +1,251 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * DNS server on 127.0.0.1 (UDP and TCP, same port) standing in for the
+ * recursor in load tests.
+ *
+ * SOA queries for the zones of RecordCorpus.zoneName() are answered with the
+ * SOA the corpus put into the DB for the first delegatedShare of the zones,
+ * the others get a SOA of another provider. Names outside the corpus get
+ * NXDOMAIN, every other type a TXT record as StubDnsClient does.
+ *
+ * It is the parent of the zones as well: NS queries for de. and com. name a
+ * server on 127.0.0.1 (in the glue), NS queries for a zone get a referral
+ * to the zone's NS in the DB or, outside delegatedShare, to another
+ * provider.
+ *
+ * UDP answers are sent after latencyMillis, lossShare of the UDP queries are
+ * dropped.
+ *
+ * @author mieslingert
+ */
+public class StubDnsServer implements Closeable {
+
+    private static final Name TLD_SERVER = Name.fromConstantString("ns.stub-tld.");
+
+    private final RecordCorpus corpus = new RecordCorpus(0);
+    private final int latencyMillis;
+    private final double lossShare;
+    private final double delegatedShare;
+    private final DatagramSocket udp;
+    private final ServerSocket tcp;
+    private final ScheduledExecutorService delayed;
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean keepOnRunning = true;
+
+    public StubDnsServer(int latencyMillis, double lossShare, double delegatedShare) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.lossShare = lossShare;
+        this.delegatedShare = delegatedShare;
+        InetAddress lo = InetAddress.getByName("127.0.0.1");
+        this.udp = new DatagramSocket(new InetSocketAddress(lo, 0));
+        this.udp.setReceiveBufferSize(4 << 20);
+        this.tcp = new ServerSocket(udp.getLocalPort(), 128, lo);
+        this.delayed = Executors.newScheduledThreadPool(2);
+
+        Thread tu = new Thread(this::serveUdp);
+        tu.setName("stub-dns-udp");
+        tu.setDaemon(true);
+        tu.start();
+        Thread tt = new Thread(this::serveTcp);
+        tt.setName("stub-dns-tcp");
+        tt.setDaemon(true);
+        tt.start();
+    }
+
+    public int getPort() {
+        return udp.getLocalPort();
+    }
+
+    public long getQueries() {
+        return queries.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void serveUdp() {
+        byte[] buf = new byte[65535];
+        while (keepOnRunning) {
+            try {
+                DatagramPacket in = new DatagramPacket(buf, buf.length);
+                udp.receive(in);
+                queries.incrementAndGet();
+                if (lossShare > 0 && ThreadLocalRandom.current().nextDouble() < lossShare) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                byte[] wire = answer(new Message(Arrays.copyOf(in.getData(), in.getLength()))).toWire();
+                final DatagramPacket out = new DatagramPacket(wire, wire.length, in.getSocketAddress());
+                if (latencyMillis > 0) {
+                    delayed.schedule(() -> send(out), latencyMillis, TimeUnit.MILLISECONDS);
+                } else {
+                    send(out);
+                }
+            } catch (IOException e) {
+                if (keepOnRunning) {
+                    System.out.println("stub dns: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void send(DatagramPacket out) {
+        try {
+            udp.send(out);
+        } catch (IOException e) {
+            System.out.println("stub dns: " + e.getMessage());
+        }
+    }
+
+    private void serveTcp() {
+        while (keepOnRunning) {
+            try {
+                final Socket s = tcp.accept();
+                Thread t = new Thread(() -> serveConnection(s));
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                if (keepOnRunning) {
+                    System.out.println("stub dns: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serveConnection(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                queries.incrementAndGet();
+                if (latencyMillis > 0) {
+                    Thread.sleep(latencyMillis);
+                }
+                byte[] wire = answer(new Message(query)).toWire();
+                out.writeShort(wire.length);
+                out.write(wire);
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            // closed by the client
+        } finally {
+            try {
+                s.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private Message answer(Message query) throws IOException {
+        Record question = query.getQuestion();
+        Message answer = new Message(query.getHeader().getID());
+        answer.getHeader().setFlag(Flags.QR);
+        answer.getHeader().setFlag(Flags.RA);
+        if (question == null) {
+            answer.getHeader().setRcode(Rcode.FORMERR);
+            return answer;
+        }
+        answer.addRecord(question, Section.QUESTION);
+        Name name = question.getName();
+        if (question.getType() == Type.NS) {
+            return referral(answer, name);
+        }
+        if (question.getType() != Type.SOA) {
+            answer.addRecord(new TXTRecord(name, DClass.IN, 300, "stub"), Section.ANSWER);
+            return answer;
+        }
+        int zone = zoneIndex(name);
+        if (zone < 0) {
+            answer.getHeader().setRcode(Rcode.NXDOMAIN);
+            return answer;
+        }
+        String[] f = corpus.soaContent(zone).split(" ");
+        // a stable share of the zones, by index
+        boolean ours = (zone % 1000) < delegatedShare * 1000;
+        Name primary = new Name((ours ? f[0] : "ns1.elsewhere.example") + ".");
+        answer.addRecord(new SOARecord(name, DClass.IN, 86400, primary, new Name(f[1] + "."), Long.parseLong(f[2]),
+                Long.parseLong(f[3]), Long.parseLong(f[4]), Long.parseLong(f[5]), Long.parseLong(f[6])), Section.ANSWER);
+        return answer;
+    }
+
+    private Message referral(Message answer, Name name) throws IOException {
+        if (name.labels() == 2) {
+            // a TLD, served by this server
+            answer.addRecord(new NSRecord(name, DClass.IN, 86400, TLD_SERVER), Section.ANSWER);
+            answer.addRecord(new ARecord(TLD_SERVER, DClass.IN, 86400, InetAddress.getByName("127.0.0.1")), Section.ADDITIONAL);
+            return answer;
+        }
+        int zone = zoneIndex(name);
+        if (zone < 0) {
+            answer.getHeader().setRcode(Rcode.NXDOMAIN);
+            return answer;
+        }
+        boolean ours = (zone % 1000) < delegatedShare * 1000;
+        Name server = new Name((ours ? corpus.nsContent(zone) : "ns1.elsewhere.example") + ".");
+        answer.addRecord(new NSRecord(name, DClass.IN, 86400, server), Section.AUTHORITY);
+        return answer;
+    }
+
+    /**
+     * @return i for zone<i>.de and zone<i>.com, -1 for other names
+     */
+    private int zoneIndex(Name name) {
+        if (name.labels() != 3) {
+            return -1;
+        }
+        String label = name.getLabelString(0);
+        if (!label.startsWith("zone") || label.length() == 4) {
+            return -1;
+        }
+        try {
+            int i = Integer.parseInt(label.substring(4));
+            return name.toString(true).equals(corpus.zoneName(i)) ? i : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public void close() throws IOException {
+        keepOnRunning = false;
+        delayed.shutdownNow();
+        udp.close();
+        tcp.close();
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import ch.vorburger.mariadb4j.DB;
+import ch.vorburger.mariadb4j.DBConfigurationBuilder;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * An embedded MariaDB with the PowerDNS 4 schema, filled with RecordCorpus
+ * zones: domain_id i + 1 is zone i, with its SOA and recordsPerZone other
+ * records. The rows are written to tab separated files first and loaded with
+ * LOAD DATA, a few million zones take minutes, not hours.
+ *
+ * @author mieslingert
+ */
+public class SyntheticPdnsDb {
+
+    private final File dir;
+    private DB db;
+    private String jdbcUrl;
+
+    /**
+     * @param dir data directory of the DB and the load files
+     */
+    public SyntheticPdnsDb(File dir) {
+        this.dir = dir;
+    }
+
+    public void start() throws Exception {
+        DBConfigurationBuilder config = DBConfigurationBuilder.newBuilder();
+        // a free port
+        config.setPort(0);
+        config.setDataDir(new File(dir, "data").getPath());
+        config.setBaseDir(new File(dir, "base").getPath());
+        if ("root".equals(System.getProperty("user.name"))) {
+            // mysqld refuses to run as root otherwise, e.g. in containers
+            config.addArg("--user=root");
+        }
+        db = DB.newEmbeddedDB(config.build());
+        db.start();
+        // over JDBC, DB.createDB() needs the mysql client and its libraries
+        jdbcUrl = config.getURL("");
+        try (Connection cn = connect(); Statement st = cn.createStatement()) {
+            st.execute("create database pdns");
+        }
+        jdbcUrl = config.getURL("pdns") + "?useServerPrepStmts=true&allowLoadLocalInfile=true";
+    }
+
+    public String getJdbcUrl() {
+        return jdbcUrl;
+    }
+
+    public String getUser() {
+        return "root";
+    }
+
+    public void createSchema() throws Exception {
+        try (Connection cn = connect(); Statement st = cn.createStatement()) {
+            st.execute("create table domains ("
+                    + "id int auto_increment, "
+                    + "name varchar(255) not null, "
+                    + "master varchar(128) default null, "
+                    + "last_check int default null, "
+                    + "type varchar(6) not null, "
+                    + "notified_serial int unsigned default null, "
+                    + "account varchar(40) character set 'utf8' default null, "
+                    + "primary key (id), "
+                    + "unique key name_index (name)) engine=InnoDB character set 'latin1'");
+            st.execute("create table records ("
+                    + "id bigint auto_increment, "
+                    + "domain_id int default null, "
+                    + "name varchar(255) default null, "
+                    + "type varchar(10) default null, "
+                    + "content varchar(64000) default null, "
+                    + "ttl int default null, "
+                    + "prio int default null, "
+                    + "disabled tinyint(1) default 0, "
+                    + "ordername varchar(255) binary default null, "
+                    + "auth tinyint(1) default 1, "
+                    + "primary key (id), "
+                    + "key nametype_index (name, type), "
+                    + "key domain_id (domain_id), "
+                    + "key ordername (ordername)) engine=InnoDB character set 'latin1'");
+            st.execute("create table domainmetadata ("
+                    + "id int auto_increment, "
+                    + "domain_id int not null, "
+                    + "kind varchar(32), "
+                    + "content text, "
+                    + "primary key (id), "
+                    + "key domainmetadata_idx (domain_id, kind)) engine=InnoDB character set 'latin1'");
+        }
+    }
+
+    /**
+     * @return number of records loaded
+     */
+    public long fill(int zones, int recordsPerZone, long seed) throws Exception {
+        RecordCorpus corpus = new RecordCorpus(seed);
+        File domainsFile = new File(dir, "domains.tsv");
+        File recordsFile = new File(dir, "records.tsv");
+        long recordId = 1;
+        try (Writer domains = open(domainsFile); Writer records = open(recordsFile)) {
+            for (int i = 0; i < zones; i++) {
+                long domainId = i + 1;
+                domains.write(domainId + "\t" + corpus.zoneName(i) + "\tNATIVE\n");
+                for (Zone.Row row : corpus.zone(i, recordsPerZone, recordId)) {
+                    records.write(row.getId() + "\t" + domainId + "\t");
+                    escape(records, row.getName());
+                    records.write("\t" + row.getType() + "\t");
+                    escape(records, row.getContent());
+                    records.write("\t" + row.getTtl() + "\t" + row.getPrio() + "\n");
+                }
+                recordId += recordsPerZone + 1;
+            }
+        }
+        try (Connection cn = connect(); Statement st = cn.createStatement()) {
+            st.execute("load data local infile '" + domainsFile.getPath() + "' into table domains (id, name, type)");
+            st.execute("load data local infile '" + recordsFile.getPath() + "' into table records "
+                    + "(id, domain_id, name, type, content, ttl, prio)");
+        }
+        domainsFile.delete();
+        recordsFile.delete();
+        return recordId - 1;
+    }
+
+    private static Writer open(File f) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8), 1 << 20);
+    }
+
+    private static void escape(Writer out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' || c == '\t' || c == '\n') {
+                out.write('\\');
+            }
+            out.write(c);
+        }
+    }
+
+    /**
+     * @return findings the validator wrote
+     */
+    public long countBroken() throws Exception {
+        try (Connection cn = connect(); Statement st = cn.createStatement()) {
+            ResultSet rs = st.executeQuery("select count(*) from domainmetadata where kind='broken'");
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private Connection connect() throws Exception {
+        Class.forName("com.mysql.jdbc.Driver");
+        return DriverManager.getConnection(jdbcUrl, getUser(), "");
+    }
+
+    public void stop() throws Exception {
+        if (db != null) {
+            db.stop();
+        }
+    }
+}
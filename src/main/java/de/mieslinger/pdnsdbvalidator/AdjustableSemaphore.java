@@ -0,0 +1,35 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Semaphore whose number of permits can be changed while permits are held.
+ * Shrinking takes effect as permits are released.
+ *
+ * @author mieslingert
+ */
+public class AdjustableSemaphore extends Semaphore {
+
+    private int limit;
+
+    public AdjustableSemaphore(int limit) {
+        super(limit);
+        this.limit = limit;
+    }
+
+    public synchronized void setLimit(int newLimit) {
+        if (newLimit > limit) {
+            release(newLimit - limit);
+        } else if (newLimit < limit) {
+            reducePermits(limit - newLimit);
+        }
+        limit = newLimit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+}
@@ -1,10 +1,15 @@
 package de.mieslinger.pdnsdbvalidator;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Updater
@@ -12,11 +17,37 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class App {
 
-    private final static ConcurrentLinkedQueue<Long> domainIdQ = new ConcurrentLinkedQueue<>();
-    private final static ConcurrentLinkedQueue<String> logFileQ = new ConcurrentLinkedQueue<>();
-    private final static ConcurrentLinkedQueue<String> criticalLogFileQ = new ConcurrentLinkedQueue<>();
+    private final static LongRingBuffer domainIdQ = new LongRingBuffer(DataBase.getIdQueueSize());
+    private final static ArrayBlockingQueue<Zone> zoneQ = new ArrayBlockingQueue<>(DataBase.getZoneQueueSize());
+    private final static LogQueue logFileQ = new LogQueue(DataBase.getLogQueueSize(), DataBase.getLogQueuePolicy());
+    private final static LogQueue criticalLogFileQ = new LogQueue(DataBase.getLogQueueSize(), DataBase.getLogQueuePolicy());
+    // daemon mode: counted down when run() is through, the shutdown hook waits for it
+    private final static CountDownLatch stopped = new CountDownLatch(1);
 
     public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * one sweep, returns when all zones are checked; only once per JVM, the
+     * queues are static
+     *
+     * @return exit code
+     */
+    public static int run(String[] args) {
+        boolean resume = false;
+        for (String arg : args) {
+            if ("--resume".equals(arg)) {
+                resume = true;
+            } else {
+                System.out.println("usage: App [--resume]");
+                return 1;
+            }
+        }
+        if (DataBase.getConfigError() != null) {
+            System.out.println(DataBase.getConfigError());
+            return 1;
+        }
         try {
             // setup Queues und Thread Pools
             LogFileWriter logfileWriter = new LogFileWriter(logFileQ, System.getProperty("user.home") + "/pdns-db-validator.log");
@@ -29,39 +60,272 @@ public class App {
             ctlfw.setName("criticalLogFileQ-writer");
             ctlfw.start();
 
-            DomainUpdater domainUpdater = new DomainUpdater(domainIdQ, logFileQ, criticalLogFileQ, 20);
-
-            // getDomainIds direkt hier
-            Class.forName(DataBase.getJdbcClass());
-            Connection cn = DriverManager.getConnection(DataBase.getJdbcUrl(), DataBase.getDbUser(), DataBase.getDbPass());
-            PreparedStatement stAllDomainIds = cn.prepareStatement("select id from domains");
-            ResultSet rsDomainIds = stAllDomainIds.executeQuery();
-            while (rsDomainIds.next()) {
-                domainIdQ.add(rsDomainIds.getLong(1));
-                if (domainIdQ.size() > 20000) {
-                    Thread.sleep(1000);
+            Metrics metrics = Metrics.get();
+            metrics.gauge("zone_queue", () -> zoneQ.size());
+            metrics.gauge("log_queue", () -> logFileQ.size());
+            metrics.gauge("log_dropped", () -> logFileQ.getDropped() + criticalLogFileQ.getDropped());
+            metrics.registerMBean();
+            if (DataBase.getMetricsPort() > 0) {
+                metrics.startHttp(DataBase.getMetricsPort());
+            }
+
+            boolean offline = "offline".equals(DataBase.getScanMode());
+            FindingsFile findingsFile = null;
+            if (offline) {
+                // a resumed run adds to the findings of the crashed one
+                findingsFile = new FindingsFile(DataBase.getFindingsFile(), resume);
+            }
+
+            Checkpoint checkpoint = new Checkpoint(DataBase.getCheckpointFile(), DataBase.getCheckpointIntervalMillis());
+            long startAfter = 0;
+            if (resume) {
+                startAfter = checkpoint.load();
+                // verdicts of the crashed run that never made it into the DB
+                BrokenMarkerWriter replay = offline
+                        ? new BrokenMarkerWriter(findingsFile, DataBase.getMarkerBatchSize(), null)
+                        : new BrokenMarkerWriter(DataBase.getWritePool(), DataBase.getMarkerBatchSize(), null);
+                for (Checkpoint.Verdict v : checkpoint.getSavedVerdicts()) {
+                    replay.add(v.getDomainId(), v.getFindings(), v.isConclusive());
                 }
+                replay.flush();
+                System.out.println("resuming after domain_id " + startAfter + ", " + checkpoint.getSavedVerdicts().size() + " saved verdicts written");
             }
-            System.out.println("All domain_ids queued");
-            // Queue Sizes angucken
-            while (domainIdQ.size() > 0) {
-                System.out.println("domainIdQ size: " + domainIdQ.size());
-                Thread.sleep(10000);
+            LeaseManager leases = null;
+            if (!DataBase.getLeaseSweep().isEmpty()) {
+                if (resume || !"byId".equals(DataBase.getScanMode())) {
+                    System.out.println("leaseSweep needs scanMode=byId, the lease table replaces --resume");
+                    return 1;
+                }
+                leases = new LeaseManager(DataBase.getWritePool(), DataBase.getLeaseSweep(), DataBase.getLeaseRangeSize(), DataBase.getLeaseTtlSeconds());
+                leases.createRanges();
+                checkpoint.setLeases(leases);
+                Thread tl = new Thread(leases);
+                tl.setName("lease-heartbeat");
+                tl.setDaemon(true);
+                tl.start();
+                System.out.println("instance " + leases.getInstance() + " working on sweep " + DataBase.getLeaseSweep());
+            }
+            boolean daemon = DataBase.getDaemonWindowMinutes() > 0;
+            if (daemon && (resume || leases != null || !"byId".equals(DataBase.getScanMode()))) {
+                System.out.println("daemonWindowMinutes needs scanMode=byId, without leaseSweep and --resume");
+                return 1;
+            }
+            // byId: all ids in one sorted array, claimed in chunks; leases and the daemon queue ids as they go
+            final DomainIdIndex idIndex = "byId".equals(DataBase.getScanMode()) && leases == null && !daemon
+                    ? new DomainIdIndex(DataBase.getIdChunkSize(), checkpoint) : null;
+            final DomainIdSource domainIds = idIndex != null ? idIndex : domainIdQ;
+            if (idIndex != null) {
+                idIndex.setPriority(loadPriorities());
+            }
+            metrics.gauge("domain_id_queue", () -> domainIds.size());
+
+            if (!daemon) {
+                // the daemon does not dispatch in id order and never completes a run
+                Thread tcp = new Thread(checkpoint);
+                tcp.setName("checkpoint-writer");
+                tcp.setDaemon(true);
+                tcp.start();
             }
-            while (logFileQ.size() > 0) {
-                System.out.println("logFileQ size: " + logFileQ.size());
-                Thread.sleep(10000);
+
+            final DomainUpdater domainUpdater = new DomainUpdater(domainIds, zoneQ, logFileQ, criticalLogFileQ, checkpoint, findingsFile, 20);
+
+            // the producer blocks while the queues are full
+            if ("stream".equals(DataBase.getScanMode())) {
+                ZoneScanner scanner = new ZoneScanner(zoneQ, logFileQ, DataBase.getScanPageSize(), DataBase.getRecordPageSize(),
+                        checkpoint, startAfter);
+                long zones = scanner.scan();
+                System.out.println("All " + zones + " zones queued");
+            } else if (offline) {
+                ExportScanner scanner = new ExportScanner(zoneQ, logFileQ, DataBase.getOfflineDomainsFile(), DataBase.getOfflineRecordsFile(),
+                        DataBase.getOfflineDomainColumns(), DataBase.getOfflineRecordColumns(), DataBase.getOfflineChunkSize(),
+                        DataBase.isOfflineMysqlBatch(), checkpoint, startAfter);
+                long zones = scanner.scan();
+                System.out.println("All " + zones + " zones from " + DataBase.getOfflineDomainsFile() + " queued");
+            } else if (leases != null) {
+                long ranges = dispatchLeases(leases, checkpoint);
+                System.out.println("All domain_ids of " + ranges + " claimed ranges queued");
+            } else if (daemon) {
+                final WindowScheduler scheduler = new WindowScheduler(DataBase.getReadPool(), domainIdQ, logFileQ,
+                        TimeUnit.MINUTES.toMillis(DataBase.getDaemonWindowMinutes()), DataBase.getDaemonTickMillis(),
+                        TimeUnit.MINUTES.toMillis(DataBase.getDaemonRefreshMinutes()));
+                Thread ts = new Thread(scheduler);
+                ts.setName("window-scheduler");
+                ts.setDaemon(true);
+                ts.start();
+                // SIGTERM: stop queueing, let the workers finish and commit
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    scheduler.shutdown();
+                    domainUpdater.noMoreInput();
+                    try {
+                        stopped.await(60, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                }));
+                System.out.println("daemon: every domain once in " + DataBase.getDaemonWindowMinutes() + " minutes, "
+                        + scheduler.getSlots() + " slots");
+            } else {
+                // getDomainIds direkt hier
+                ConnectionPool.PooledConnection pc = DataBase.getReadPool().borrow();
+                try {
+                    // ascending, the checkpoint relies on it
+                    PreparedStatement stAllDomainIds = pc.prepare("select id from domains where id > ? order by id");
+                    // streamed, Connector/J would buffer all rows otherwise
+                    stAllDomainIds.setFetchSize(Integer.MIN_VALUE);
+                    stAllDomainIds.setLong(1, startAfter);
+                    ResultSet rsDomainIds = stAllDomainIds.executeQuery();
+                    while (rsDomainIds.next()) {
+                        // dispatched to the checkpoint when a worker claims it
+                        idIndex.add(rsDomainIds.getLong(1));
+                    }
+                    rsDomainIds.close();
+                } catch (SQLException e) {
+                    pc.invalidate();
+                    throw e;
+                } finally {
+                    pc.release();
+                }
+                System.out.println("All " + idIndex.getLength() + " domain_ids loaded, "
+                        + (idIndex.getLength() * 8L >> 20) + " MB");
             }
-            Thread.sleep(10000);
+            if (!daemon) {
+                domainUpdater.noMoreInput();
+            }
+
+            // Queue Sizes angucken
+            while (!domainUpdater.awaitCompletion(10, TimeUnit.SECONDS)) {
+                System.out.println("domainIdQ size: " + domainIds.size() + " zoneQ size: " + zoneQ.size()
+                        + " pending delegation checks: " + domainUpdater.getPendingDelegationChecks());
+                System.out.println(domainUpdater.getResolverStats());
+                System.out.println(domainUpdater.getStateStats());
+                System.out.println("log " + logfileWriter.getStats() + " warn " + criticalLogfileWriter.getStats());
+                String summary = metrics.summary();
+                System.out.println(summary);
+                logFileQ.add(summary);
+            }
+            System.out.println(domainUpdater.getResolverStats());
+            System.out.println(domainUpdater.getStateStats());
+            System.out.println(metrics.summary());
+
             // Shutdown einleiten
+            checkpoint.shutdown();
+            checkpoint.remove();
             domainUpdater.shutdown();
+            if (leases != null) {
+                leases.shutdown();
+            }
+            if (findingsFile != null) {
+                findingsFile.close();
+                System.out.println(findingsFile.getRows() + " findings written to " + DataBase.getFindingsFile());
+            }
+            metrics.stopHttp();
+            DataBase.getReadPool().close();
+            DataBase.getWritePool().close();
             logfileWriter.shutdown();
             criticalLogfileWriter.shutdown();
-            Thread.sleep(1000);
-            System.exit(0);
+            tlfw.join();
+            ctlfw.join();
+            System.out.println("log " + logfileWriter.getStats() + " warn " + criticalLogfileWriter.getStats());
+            stopped.countDown();
+            return 0;
         } catch (Exception e) {
             e.printStackTrace();
+            stopped.countDown();
+            return 1;
         }
+    }
 
+    /**
+     * @return domain ids to check first: changed zones, then zones marked
+     * broken, each ascending
+     */
+    private static long[] loadPriorities() throws Exception {
+        Set<Long> ids = new LinkedHashSet<>();
+        String[] levels = {"changed", "broken"};
+        String[] queries = {DataBase.getPriorityChangedQuery(), DataBase.getPriorityBrokenQuery()};
+        for (int level = 0; level < queries.length; level++) {
+            if (queries[level].isEmpty()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            int before = ids.size();
+            TreeSet<Long> levelIds = new TreeSet<>();
+            ConnectionPool.PooledConnection pc = DataBase.getReadPool().borrow();
+            try {
+                PreparedStatement st = pc.prepare(queries[level]);
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    levelIds.add(rs.getLong(1));
+                }
+                rs.close();
+            } catch (Exception e) {
+                pc.invalidate();
+                // a plain sweep is still better than none
+                System.out.println("priority query for " + levels[level] + " zones failed: " + e.getMessage());
+                continue;
+            } finally {
+                pc.release();
+            }
+            ids.addAll(levelIds);
+            Metrics.get().add("priority_domains{level=\"" + levels[level] + "\"}", ids.size() - before);
+            System.out.println((ids.size() - before) + " " + levels[level] + " zones first, read in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        long[] priority = new long[ids.size()];
+        int i = 0;
+        for (Long id : ids) {
+            priority[i++] = id;
+        }
+        return priority;
+    }
+
+    /**
+     * claim ranges until none is left, waits while other instances hold
+     * ranges in case one of them dies
+     *
+     * @return number of ranges claimed
+     */
+    private static long dispatchLeases(LeaseManager leases, Checkpoint checkpoint) throws Exception {
+        long ranges = 0;
+        while (true) {
+            LeaseManager.Lease lease = leases.claim();
+            if (lease == null) {
+                if (leases.getOthersOpen() == 0) {
+                    return ranges;
+                }
+                Thread.sleep(leases.getTtlSeconds() * 1000L / 2);
+                continue;
+            }
+            ranges++;
+            // read the range first, the connection is not held while the queue is full
+            long[] ids = new long[1024];
+            int n = 0;
+            ConnectionPool.PooledConnection pc = DataBase.getReadPool().borrow();
+            try {
+                PreparedStatement st = pc.prepare("select id from domains where id > ? and id <= ? order by id");
+                // streamed, Connector/J would buffer all rows otherwise
+                st.setFetchSize(Integer.MIN_VALUE);
+                st.setLong(1, lease.getStart());
+                st.setLong(2, lease.getEnd());
+                ResultSet rs = st.executeQuery();
+                while (rs.next()) {
+                    if (n == ids.length) {
+                        ids = Arrays.copyOf(ids, n * 2);
+                    }
+                    ids[n++] = rs.getLong(1);
+                }
+                rs.close();
+            } catch (SQLException e) {
+                pc.invalidate();
+                throw e;
+            } finally {
+                pc.release();
+            }
+            for (int i = 0; i < n && !lease.isLost(); i++) {
+                leases.dispatched(lease);
+                checkpoint.dispatched(ids[i]);
+                domainIdQ.put(ids[i]);
+            }
+            leases.closed(lease);
+        }
     }
 }
@@ -0,0 +1,260 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.SimpleResolver;
+
+/**
+ * Non-blocking resolver: all queries share one UDP socket which is read by a
+ * single selector thread, so thousands of queries can be in flight at once.
+ * The number of outstanding queries is bounded by maxInFlight, callers block
+ * in sendAsync() when the window is full. The window is capped at
+ * MAX_IN_FLIGHT, below the 65536 message ids, so a free id is always found.
+ *
+ * Queries may name their server, so one socket serves many servers; an
+ * answer is only taken from the server the query was sent to.
+ *
+ * Futures complete on the receiver thread.
+ *
+ * @author mieslingert
+ */
+public class AsyncResolver implements DnsClient {
+
+    // leaves a few thousand of the 16 bit ids free, a random one is found quickly
+    static final int MAX_IN_FLIGHT = 60000;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final AdjustableSemaphore window;
+    private final ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+    // insertion order is deadline order as long as the timeout doesn't change,
+    // after a change queries may expire up to the difference late
+    private final ConcurrentLinkedQueue<PendingQuery> deadlines = new ConcurrentLinkedQueue<>();
+    private final ExecutorService tcpFallback;
+    private final Thread receiver;
+    private volatile InetSocketAddress server;
+    private volatile long timeoutMillis;
+    private volatile boolean keepOnRunning = true;
+
+    public AsyncResolver(String recursor, int maxInFlight, int timeoutMillis) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(recursor), SimpleResolver.DEFAULT_PORT), maxInFlight, timeoutMillis);
+    }
+
+    /**
+     * @param server null if every query names its server
+     */
+    public AsyncResolver(InetSocketAddress server, int maxInFlight, int timeoutMillis) throws IOException {
+        this.server = server;
+        this.timeoutMillis = timeoutMillis;
+        this.window = new AdjustableSemaphore(Math.min(maxInFlight, MAX_IN_FLIGHT));
+
+        this.channel = DatagramChannel.open();
+        this.channel.configureBlocking(false);
+        this.channel.bind(null);
+        this.selector = Selector.open();
+        this.channel.register(selector, SelectionKey.OP_READ);
+
+        this.tcpFallback = Executors.newFixedThreadPool(2, r -> {
+            Thread t = new Thread(r);
+            t.setName("dns-tcp-fallback");
+            t.setDaemon(true);
+            return t;
+        });
+
+        this.receiver = new Thread(new Receiver());
+        this.receiver.setName("dns-receiver");
+        this.receiver.setDaemon(true);
+        this.receiver.start();
+    }
+
+    public CompletableFuture<Message> sendAsync(Message query) {
+        return sendAsync(query, server);
+    }
+
+    public CompletableFuture<Message> sendAsync(Message query, InetSocketAddress to) {
+        CompletableFuture<Message> future = new CompletableFuture<>();
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        PendingQuery pq = new PendingQuery(query, to, future, System.currentTimeMillis() + timeoutMillis);
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (pending.putIfAbsent(id, pq) != null);
+        pq.id = id;
+
+        Message wire = (Message) query.clone();
+        wire.getHeader().setID(id);
+        try {
+            channel.send(ByteBuffer.wrap(wire.toWire()), to);
+            deadlines.add(pq);
+        } catch (IOException e) {
+            complete(pq, null, e);
+        }
+        return future;
+    }
+
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    /**
+     * resize the window (at most MAX_IN_FLIGHT), queries above the new size
+     * are not cancelled
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        window.setLimit(Math.min(maxInFlight, MAX_IN_FLIGHT));
+    }
+
+    public int getMaxInFlight() {
+        return window.getLimit();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void shutdown() {
+        keepOnRunning = false;
+        selector.wakeup();
+        tcpFallback.shutdown();
+    }
+
+    private void complete(PendingQuery pq, Message response, Exception e) {
+        // whoever removes the entry owns the completion
+        if (!pending.remove(pq.id, pq)) {
+            return;
+        }
+        window.release();
+        if (e != null) {
+            pq.future.completeExceptionally(e);
+        } else {
+            pq.future.complete(response);
+        }
+    }
+
+    private void received(ByteBuffer buf, SocketAddress from) {
+        Message response;
+        try {
+            response = new Message(buf);
+        } catch (IOException e) {
+            // garbage, let the query time out
+            return;
+        }
+        PendingQuery pq = pending.get(response.getHeader().getID());
+        if (pq == null || !pq.to.equals(from) || response.getQuestion() == null
+                || !response.getQuestion().getName().equals(pq.query.getQuestion().getName())
+                || response.getQuestion().getType() != pq.query.getQuestion().getType()) {
+            return;
+        }
+        if (response.getHeader().getFlag(Flags.TC)) {
+            // truncated, ask again via TCP off the receiver thread
+            deadlines.remove(pq);
+            tcpFallback.execute(() -> {
+                try {
+                    SimpleResolver tcp = new SimpleResolver();
+                    tcp.setAddress(pq.to);
+                    tcp.setTCP(true);
+                    tcp.setTimeout((int) (timeoutMillis / 1000), (int) (timeoutMillis % 1000));
+                    complete(pq, tcp.send(pq.query), null);
+                } catch (Exception e) {
+                    complete(pq, null, e);
+                }
+            });
+            return;
+        }
+        Message answer = (Message) response.clone();
+        answer.getHeader().setID(pq.query.getHeader().getID());
+        complete(pq, answer, null);
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        PendingQuery pq;
+        while ((pq = deadlines.peek()) != null && pq.deadline <= now) {
+            deadlines.poll();
+            complete(pq, null, new SocketTimeoutException("timed out: " + pq.query.getQuestion().getName()));
+        }
+    }
+
+    private class Receiver implements Runnable {
+
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocateDirect(65535);
+            while (keepOnRunning) {
+                try {
+                    selector.select(10);
+                    selector.selectedKeys().clear();
+                    while (true) {
+                        buf.clear();
+                        SocketAddress from = channel.receive(buf);
+                        if (from == null) {
+                            break;
+                        }
+                        buf.flip();
+                        received(buf, from);
+                    }
+                    expire();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static class PendingQuery {
+
+        private final Message query;
+        private final InetSocketAddress to;
+        private final CompletableFuture<Message> future;
+        private final long deadline;
+        private int id;
+
+        PendingQuery(Message query, InetSocketAddress to, CompletableFuture<Message> future, long deadline) {
+            this.query = query;
+            this.to = to;
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    // org.xbill.DNS.Resolver
+    public void setPort(int port) {
+        if (server != null) {
+            server = new InetSocketAddress(server.getAddress(), port);
+        }
+    }
+
+    public void setTimeout(int secs, int msecs) {
+        timeoutMillis = TimeUnit.SECONDS.toMillis(secs) + msecs;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the findings of validated zones and writes them to domainmetadata
+ * (kind 'broken') in JDBC batches. The existing broken rows of the whole
+ * batch are read with one query, so only new findings are inserted and
+ * findings that are gone are deleted. Unchanged rows are not touched.
+ *
+ * Not thread safe, one per worker. flush() borrows a connection from the
+ * write pool and commits.
+ *
+ * With several instances (LeaseManager) only verdicts of domains whose lease
+ * is still held are written, the lease rows stay locked until the commit.
+ *
+ * Offline runs append all findings to a FindingsFile instead, there is no
+ * domainmetadata to compare against.
+ *
+ * In incremental runs the verdicts are recorded in the ValidationState once
+ * their batch is committed, so a zone is never current in the state while
+ * its findings are missing from domainmetadata.
+ *
+ * @author mieslingert
+ */
+public class BrokenMarkerWriter {
+
+    private final int batchSize;
+    private final ConnectionPool writePool;
+    private final FindingsFile findingsFile;
+    private final Checkpoint checkpoint;
+    private final String getBrokenSql;
+    private final List<Verdict> pending = new ArrayList<>();
+    private ValidationState state = null;
+
+    /**
+     * @param checkpoint told about committed domains, may be null
+     */
+    public BrokenMarkerWriter(ConnectionPool writePool, int batchSize, Checkpoint checkpoint) {
+        this.batchSize = batchSize;
+        this.writePool = writePool;
+        this.findingsFile = null;
+        this.checkpoint = checkpoint;
+        StringBuilder sql = new StringBuilder("select domain_id, content from domainmetadata where kind='broken' and domain_id in (");
+        for (int i = 0; i < batchSize; i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+        this.getBrokenSql = sql.toString();
+    }
+
+    /**
+     * @param checkpoint told about written domains, may be null
+     */
+    public BrokenMarkerWriter(FindingsFile findingsFile, int batchSize, Checkpoint checkpoint) {
+        this.batchSize = batchSize;
+        this.writePool = null;
+        this.findingsFile = findingsFile;
+        this.checkpoint = checkpoint;
+        this.getBrokenSql = null;
+    }
+
+    /**
+     * record committed verdicts in this state, see add() with fingerprint
+     */
+    public void setState(ValidationState state) {
+        this.state = state;
+    }
+
+    /**
+     * @param conclusive false if the check did not complete (e.g. DNS
+     * timeout): new findings are written but nothing is deleted
+     * @return true if a batch is full and should be flushed
+     */
+    public boolean add(long domainId, List<String> findings, boolean conclusive) {
+        pending.add(new Verdict(domainId, findings, conclusive, false, 0));
+        return pending.size() >= batchSize;
+    }
+
+    /**
+     * as add(), the verdict is recorded in the state with this fingerprint
+     * after the commit
+     */
+    public boolean add(long domainId, List<String> findings, boolean conclusive, long fingerprint) {
+        pending.add(new Verdict(domainId, findings, conclusive, true, fingerprint));
+        return pending.size() >= batchSize;
+    }
+
+    public int pending() {
+        return pending.size();
+    }
+
+    public void flush() throws SQLException, IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (findingsFile != null) {
+            try {
+                for (Verdict v : pending) {
+                    findingsFile.write(v.domainId, v.findings);
+                }
+                findingsFile.flush();
+                committed(pending);
+            } finally {
+                Metrics.get().stage(Metrics.METADATA_WRITE).recordSince(start);
+            }
+            return;
+        }
+        List<Verdict> writable = pending;
+        ConnectionPool.PooledConnection pc = writePool.borrow();
+        try {
+            LeaseManager leases = checkpoint != null ? checkpoint.getLeases() : null;
+            if (leases != null) {
+                writable = fenced(pc, leases);
+            }
+            for (int from = 0; from < writable.size(); from += batchSize) {
+                flush(pc, writable.subList(from, Math.min(from + batchSize, writable.size())));
+            }
+            pc.getConnection().commit();
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+            Metrics.get().stage(Metrics.METADATA_WRITE).recordSince(start);
+        }
+        // after release, finished leases are marked done with a connection of their own
+        committed(writable);
+    }
+
+    /**
+     * @return the pending verdicts whose lease is still held
+     */
+    private List<Verdict> fenced(ConnectionPool.PooledConnection pc, LeaseManager leases) throws SQLException {
+        List<Long> ids = new ArrayList<>(pending.size());
+        for (Verdict v : pending) {
+            ids.add(v.domainId);
+        }
+        Set<Long> held = leases.fence(pc, ids);
+        List<Verdict> writable = new ArrayList<>(pending.size());
+        for (Verdict v : pending) {
+            if (held.contains(v.domainId)) {
+                writable.add(v);
+            } else {
+                // the new owner checks it again
+                System.out.println("domainId: " + v.domainId + " lease lost, verdict dropped");
+            }
+        }
+        return writable;
+    }
+
+    /**
+     * @param written the verdicts that reached domainmetadata or the file
+     */
+    private void committed(List<Verdict> written) throws IOException {
+        if (state != null) {
+            for (Verdict v : written) {
+                if (v.fingerprinted) {
+                    byte verdict = !v.conclusive ? ValidationState.INCONCLUSIVE
+                            : v.findings.isEmpty() ? ValidationState.OK : ValidationState.BROKEN;
+                    state.record(v.domainId, v.fingerprint, verdict);
+                }
+            }
+        }
+        if (checkpoint != null) {
+            List<Long> committed = new ArrayList<>(pending.size());
+            for (Verdict v : pending) {
+                committed.add(v.domainId);
+            }
+            checkpoint.committed(committed);
+        }
+        pending.clear();
+    }
+
+    private void flush(ConnectionPool.PooledConnection pc, List<Verdict> batch) throws SQLException {
+        PreparedStatement getBroken = pc.prepare(getBrokenSql);
+        PreparedStatement insBroken = pc.prepare("insert into domainmetadata(domain_id, kind, content) values (?, 'broken', ?)");
+        PreparedStatement delBroken = pc.prepare("delete from domainmetadata where domain_id=? and kind='broken' and content=?");
+
+        // unused placeholders are padded with the last id so the statement can be reused
+        for (int i = 0; i < batchSize; i++) {
+            getBroken.setLong(i + 1, batch.get(Math.min(i, batch.size() - 1)).domainId);
+        }
+        Map<Long, Set<String>> existing = new HashMap<>();
+        ResultSet rs = getBroken.executeQuery();
+        while (rs.next()) {
+            long domainId = rs.getLong(1);
+            Set<String> reasons = existing.get(domainId);
+            if (reasons == null) {
+                reasons = new HashSet<>();
+                existing.put(domainId, reasons);
+            }
+            reasons.add(rs.getString(2));
+        }
+        rs.close();
+
+        // a domain may show up twice in one batch, the later verdict wins
+        Map<Long, Verdict> latest = new LinkedHashMap<>();
+        for (Verdict v : batch) {
+            latest.put(v.domainId, v);
+        }
+
+        int inserts = 0;
+        int deletes = 0;
+        for (Verdict v : latest.values()) {
+            Set<String> old = existing.get(v.domainId);
+            if (old == null) {
+                old = new HashSet<>();
+            }
+            Set<String> current = new HashSet<>(v.findings);
+            for (String reason : current) {
+                if (!old.contains(reason)) {
+                    insBroken.setLong(1, v.domainId);
+                    insBroken.setString(2, reason);
+                    insBroken.addBatch();
+                    inserts++;
+                    System.out.println("domainId: " + v.domainId + " marked as broken " + reason);
+                }
+            }
+            if (v.conclusive) {
+                for (String reason : old) {
+                    if (!current.contains(reason)) {
+                        delBroken.setLong(1, v.domainId);
+                        delBroken.setString(2, reason);
+                        delBroken.addBatch();
+                        deletes++;
+                        System.out.println("domainId: " + v.domainId + " no longer broken " + reason);
+                    }
+                }
+            }
+        }
+        if (inserts > 0) {
+            insBroken.executeBatch();
+        }
+        if (deletes > 0) {
+            delBroken.executeBatch();
+        }
+    }
+
+    private static class Verdict {
+
+        private final long domainId;
+        private final List<String> findings;
+        private final boolean conclusive;
+        private final boolean fingerprinted;
+        private final long fingerprint;
+
+        Verdict(long domainId, List<String> findings, boolean conclusive, boolean fingerprinted, long fingerprint) {
+            this.domainId = domainId;
+            this.findings = findings;
+            this.conclusive = conclusive;
+            this.fingerprinted = fingerprinted;
+            this.fingerprint = fingerprint;
+        }
+    }
+}
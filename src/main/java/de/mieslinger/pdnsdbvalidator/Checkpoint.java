@@ -0,0 +1,236 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Progress of a run for --resume.
+ *
+ * Domain ids are dispatched in ascending order and finish in any order. The
+ * checkpoint file holds the highest id up to which every domain is finished,
+ * plus the verdicts of finished domains that are not committed to
+ * domainmetadata yet. It is replaced atomically every interval.
+ *
+ * A resumed run first writes the saved verdicts, then continues after the
+ * saved id. Domains that were in flight are checked again (at least once).
+ *
+ * @author mieslingert
+ */
+public class Checkpoint implements Runnable {
+
+    private final File file;
+    private final long intervalMillis;
+    private volatile boolean keepOnRunning = true;
+
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    private long highestDispatched = 0;
+    private final Map<Long, Verdict> uncommitted = new LinkedHashMap<>();
+
+    private long resumeAfter = 0;
+    private final List<Verdict> savedVerdicts = new ArrayList<>();
+    // told about completed domains when several instances share the sweep
+    private volatile LeaseManager leases = null;
+
+    public Checkpoint(String fileName, long intervalMillis) {
+        this.file = new File(fileName);
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void setLeases(LeaseManager leases) {
+        this.leases = leases;
+    }
+
+    public LeaseManager getLeases() {
+        return leases;
+    }
+
+    /**
+     * read the checkpoint of the previous run, if any
+     *
+     * @return the domain_id to continue after
+     */
+    public long load() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                if (f[0].equals("resumeAfter")) {
+                    resumeAfter = Long.parseLong(f[1]);
+                } else if (f[0].equals("verdict")) {
+                    List<String> findings = new ArrayList<>(Arrays.asList(f).subList(3, f.length));
+                    savedVerdicts.add(new Verdict(Long.parseLong(f[1]), findings, Boolean.parseBoolean(f[2])));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            highestDispatched = resumeAfter;
+        }
+        return resumeAfter;
+    }
+
+    /**
+     * @return verdicts which were finished but not committed before the crash
+     */
+    public List<Verdict> getSavedVerdicts() {
+        return savedVerdicts;
+    }
+
+    public synchronized void dispatched(long domainId) {
+        inFlight.add(domainId);
+        highestDispatched = Math.max(highestDispatched, domainId);
+    }
+
+    /**
+     * ids[from] to ids[to - 1], ascending
+     */
+    public synchronized void dispatched(long[] ids, int from, int to) {
+        for (int i = from; i < to; i++) {
+            inFlight.add(ids[i]);
+        }
+        if (to > from) {
+            highestDispatched = Math.max(highestDispatched, ids[to - 1]);
+        }
+    }
+
+    /**
+     * the domain's verdict is known, it is kept here until committed
+     */
+    public synchronized void finished(long domainId, List<String> findings, boolean conclusive) {
+        inFlight.remove(domainId);
+        if (conclusive || !findings.isEmpty()) {
+            uncommitted.put(domainId, new Verdict(domainId, new ArrayList<>(findings), conclusive));
+        }
+    }
+
+    /**
+     * checked without anything to write, e.g. unchanged in incremental mode
+     */
+    public void skipped(long domainId) {
+        synchronized (this) {
+            inFlight.remove(domainId);
+        }
+        if (leases != null) {
+            leases.done(Collections.singletonList(domainId));
+        }
+    }
+
+    public void committed(Collection<Long> domainIds) {
+        synchronized (this) {
+            for (Long domainId : domainIds) {
+                uncommitted.remove(domainId);
+            }
+        }
+        if (leases != null) {
+            leases.done(domainIds);
+        }
+    }
+
+    public synchronized long getResumeAfter() {
+        if (inFlight.isEmpty()) {
+            return highestDispatched;
+        }
+        // ids are dispatched in order, so nothing unfinished is below the lowest in flight
+        return inFlight.first() - 1;
+    }
+
+    public void write() throws IOException {
+        long after;
+        List<Verdict> verdicts;
+        synchronized (this) {
+            after = getResumeAfter();
+            verdicts = new ArrayList<>(uncommitted.values());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fos, StandardCharsets.UTF_8));
+        try {
+            out.write("resumeAfter\t" + after + "\n");
+            for (Verdict v : verdicts) {
+                out.write("verdict\t" + v.domainId + "\t" + v.conclusive);
+                for (String reason : v.findings) {
+                    out.write("\t" + reason.replace('\t', ' ').replace('\n', ' '));
+                }
+                out.write("\n");
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * the run is complete, the next one starts from the beginning
+     */
+    public void remove() {
+        file.delete();
+    }
+
+    public void run() {
+        while (keepOnRunning) {
+            try {
+                Thread.sleep(intervalMillis);
+                write();
+            } catch (InterruptedException e) {
+            } catch (IOException e) {
+                System.out.println("checkpoint failed: " + e.getMessage());
+            }
+        }
+    }
+
+    public void shutdown() {
+        this.keepOnRunning = false;
+    }
+
+    public static class Verdict {
+
+        private final long domainId;
+        private final List<String> findings;
+        private final boolean conclusive;
+
+        Verdict(long domainId, List<String> findings, boolean conclusive) {
+            this.domainId = domainId;
+            this.findings = Collections.unmodifiableList(findings);
+            this.conclusive = conclusive;
+        }
+
+        public long getDomainId() {
+            return domainId;
+        }
+
+        public List<String> getFindings() {
+            return findings;
+        }
+
+        public boolean isConclusive() {
+            return conclusive;
+        }
+    }
+}
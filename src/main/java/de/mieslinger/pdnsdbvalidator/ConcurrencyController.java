@@ -0,0 +1,243 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Tunes the parallelism at runtime from the metrics of the last interval.
+ *
+ * DNS window (AIMD): shrinks by a quarter when more than maxTimeoutRate of
+ * the queries time out or the median latency is more than twice its
+ * baseline (the recursor queues or rate limits), grows by sqrt(window) when
+ * the window was nearly full and DNS is healthy.
+ *
+ * Workers (zones in flight in virtual mode): shrink by a quarter when the
+ * median DB read latency is more than twice its baseline, grow by
+ * sqrt(workers) while zones are waiting.
+ *
+ * DNS timeout: four times the p99 of answered queries, within bounds. The
+ * lower bound is the configured timeout, so the controller only lengthens
+ * it: a timeout reads as "not delegated", a slow server must not.
+ *
+ * Pause after commits: doubles while metadata writes are slower than twice
+ * their baseline, halves back to 0 otherwise.
+ *
+ * Baselines are the lowest median seen, drifting slowly upwards so a
+ * permanently slower backend is accepted.
+ *
+ * @author mieslingert
+ */
+public class ConcurrencyController implements Runnable {
+
+    private static final double TOLERANCE = 2.0;
+    private static final double DECREASE = 0.75;
+    private static final double DRIFT = 0.01;
+    private static final int MIN_QUERIES = 20;
+    private static final long MAX_COMMIT_PAUSE = 1000;
+
+    private final Metrics metrics;
+    private final long intervalMillis;
+    private final double maxTimeoutRate;
+    private final Limit dnsWindow;
+    private final Limit workers;
+    private final long timeoutMinMillis;
+    private final long timeoutMaxMillis;
+    private final IntConsumer applyTimeout;
+    private final IntSupplier dnsInFlight;
+    private final IntSupplier backlog;
+    private volatile boolean keepOnRunning = true;
+
+    private volatile long timeoutMillis;
+    private volatile long commitPauseMillis = 0;
+
+    private double dnsBaseline = 0;
+    private double dbBaseline = 0;
+    private double writeBaseline = 0;
+
+    private long lastQueries = 0;
+    private long lastTimeouts = 0;
+    private long[] lastDns;
+    private long[] lastDb;
+    private long[] lastWrite;
+
+    public ConcurrencyController(Metrics metrics, long intervalMillis, double maxTimeoutRate,
+            Limit dnsWindow, Limit workers,
+            long timeoutMinMillis, long timeoutMaxMillis, IntConsumer applyTimeout,
+            IntSupplier dnsInFlight, IntSupplier backlog) {
+        this.metrics = metrics;
+        this.intervalMillis = intervalMillis;
+        this.maxTimeoutRate = maxTimeoutRate;
+        this.dnsWindow = dnsWindow;
+        this.workers = workers;
+        this.timeoutMinMillis = timeoutMinMillis;
+        this.timeoutMaxMillis = timeoutMaxMillis;
+        this.timeoutMillis = timeoutMinMillis;
+        this.applyTimeout = applyTimeout;
+        this.dnsInFlight = dnsInFlight;
+        this.backlog = backlog;
+        this.lastDns = metrics.stage(Metrics.DNS_LOOKUP).snapshot();
+        this.lastDb = metrics.stage(Metrics.DOMAIN_FETCH).snapshot();
+        this.lastWrite = metrics.stage(Metrics.METADATA_WRITE).snapshot();
+
+        metrics.gauge("limit_dns_window", () -> dnsWindow.get());
+        metrics.gauge("limit_workers", () -> workers.get());
+        metrics.gauge("dns_timeout_millis", () -> timeoutMillis);
+        metrics.gauge("commit_pause_millis", () -> commitPauseMillis);
+    }
+
+    public long getCommitPauseMillis() {
+        return commitPauseMillis;
+    }
+
+    public void run() {
+        while (keepOnRunning) {
+            try {
+                Thread.sleep(intervalMillis);
+                adjust();
+            } catch (InterruptedException e) {
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    public void shutdown() {
+        keepOnRunning = false;
+    }
+
+    /**
+     * one control step over the metrics since the previous step
+     */
+    void adjust() {
+        long queries = metrics.getCount(Metrics.DNS_QUERIES);
+        long timeouts = metrics.getCount(Metrics.DNS_TIMEOUTS);
+        long[] dns = metrics.stage(Metrics.DNS_LOOKUP).snapshot();
+        long[] db = metrics.stage(Metrics.DOMAIN_FETCH).snapshot();
+        long[] write = metrics.stage(Metrics.METADATA_WRITE).snapshot();
+
+        long[] dnsDelta = delta(dns, lastDns);
+        adjust(queries - lastQueries, timeouts - lastTimeouts,
+                LatencyHistogram.percentile(dnsDelta, 50), LatencyHistogram.percentile(dnsDelta, 99),
+                LatencyHistogram.percentile(delta(db, lastDb), 50),
+                LatencyHistogram.percentile(delta(write, lastWrite), 50),
+                dnsInFlight.getAsInt(), backlog.getAsInt());
+
+        lastQueries = queries;
+        lastTimeouts = timeouts;
+        lastDns = dns;
+        lastDb = db;
+        lastWrite = write;
+    }
+
+    /**
+     * latencies in microseconds, 0 if nothing was measured
+     */
+    void adjust(long queries, long timeouts, long dnsP50, long dnsP99, long dbP50, long writeP50, int inFlight, int waiting) {
+        if (queries >= MIN_QUERIES) {
+            if (dnsP50 > 0) {
+                dnsBaseline = baseline(dnsBaseline, dnsP50);
+            }
+            boolean congested = (double) timeouts / queries > maxTimeoutRate
+                    || (dnsBaseline > 0 && dnsP50 > TOLERANCE * dnsBaseline);
+            if (congested) {
+                dnsWindow.decrease(DECREASE, metrics);
+            } else if (inFlight >= dnsWindow.get() * 0.8) {
+                dnsWindow.increase(step(dnsWindow), metrics);
+            }
+            if (dnsP99 > 0) {
+                long t = Math.max(timeoutMinMillis, Math.min(timeoutMaxMillis, 4 * dnsP99 / 1000));
+                if (t != timeoutMillis) {
+                    timeoutMillis = t;
+                    applyTimeout.accept((int) t);
+                }
+            }
+        } else if (inFlight >= dnsWindow.get() * 0.8) {
+            // few queries through a full window: everything waits
+            dnsWindow.increase(1, metrics);
+        }
+
+        if (dbP50 > 0) {
+            dbBaseline = baseline(dbBaseline, dbP50);
+            if (dbP50 > TOLERANCE * dbBaseline) {
+                workers.decrease(DECREASE, metrics);
+            } else if (waiting > 0) {
+                workers.increase(step(workers), metrics);
+            }
+        } else if (waiting > 0) {
+            workers.increase(step(workers), metrics);
+        }
+
+        if (writeP50 > 0) {
+            writeBaseline = baseline(writeBaseline, writeP50);
+            if (writeP50 > TOLERANCE * writeBaseline) {
+                commitPauseMillis = Math.min(MAX_COMMIT_PAUSE, Math.max(50, commitPauseMillis * 2));
+            } else {
+                commitPauseMillis = commitPauseMillis / 2;
+            }
+        }
+    }
+
+    private static int step(Limit limit) {
+        return (int) Math.max(1, Math.sqrt(limit.get()));
+    }
+
+    private static double baseline(double baseline, long sample) {
+        if (baseline == 0 || sample < baseline) {
+            return sample;
+        }
+        return baseline + (sample - baseline) * DRIFT;
+    }
+
+    private static long[] delta(long[] now, long[] before) {
+        long[] d = new long[now.length];
+        for (int i = 0; i < now.length; i++) {
+            d[i] = now[i] - before[i];
+        }
+        return d;
+    }
+
+    /**
+     * a concurrency limit within bounds, changes are passed to apply
+     */
+    public static class Limit {
+
+        private final String name;
+        private final int min;
+        private final int max;
+        private final IntConsumer apply;
+        private volatile int value;
+
+        public Limit(String name, int initial, int min, int max, IntConsumer apply) {
+            this.name = name;
+            this.min = min;
+            this.max = max;
+            this.apply = apply;
+            this.value = Math.max(min, Math.min(max, initial));
+            apply.accept(value);
+        }
+
+        public int get() {
+            return value;
+        }
+
+        void increase(int step, Metrics metrics) {
+            set(Math.min(max, value + step), metrics);
+        }
+
+        void decrease(double factor, Metrics metrics) {
+            set(Math.max(min, (int) (value * factor)), metrics);
+        }
+
+        private void set(int v, Metrics metrics) {
+            if (v == value) {
+                return;
+            }
+            metrics.count(v > value ? "limit_increases{limit=\"" + name + "\"}" : "limit_decreases{limit=\"" + name + "\"}");
+            value = v;
+            apply.accept(v);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small JDBC connection pool. At most maxSize connections are open, borrow()
+ * waits for a free one. Connections which were idle for longer than
+ * validateAfterMillis are checked with isValid() before they are handed
+ * out. Each connection keeps its prepared statements, so a statement is only
+ * prepared once per connection.
+ *
+ * @author mieslingert
+ */
+public class ConnectionPool {
+
+    private final String name;
+    private final String jdbcUrl;
+    private final Properties props;
+    private final boolean autoCommit;
+    private final long validateAfterMillis;
+    private final long borrowTimeoutMillis;
+    private final Semaphore permits;
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+    public ConnectionPool(String name, String jdbcUrl, String user, String pass, int maxSize,
+            boolean autoCommit, long validateAfterMillis, long borrowTimeoutMillis) throws ClassNotFoundException {
+        Class.forName(DataBase.getJdbcClass());
+        this.name = name;
+        this.jdbcUrl = jdbcUrl;
+        this.props = new Properties();
+        props.setProperty("user", user);
+        props.setProperty("password", pass);
+        // let Connector/J send batches as multi-row statements
+        props.setProperty("rewriteBatchedStatements", "true");
+        this.autoCommit = autoCommit;
+        this.validateAfterMillis = validateAfterMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    public PooledConnection borrow() throws SQLException {
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("pool " + name + ": no connection available after " + borrowTimeoutMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("pool " + name + ": interrupted", e);
+        }
+        try {
+            while (true) {
+                PooledConnection pc;
+                synchronized (idle) {
+                    pc = idle.pollFirst();
+                }
+                if (pc == null) {
+                    Connection cn = DriverManager.getConnection(jdbcUrl, props);
+                    cn.setAutoCommit(autoCommit);
+                    return new PooledConnection(cn);
+                }
+                if (System.currentTimeMillis() - pc.lastUsed < validateAfterMillis || pc.cn.isValid(2)) {
+                    return pc;
+                }
+                pc.closeQuietly();
+            }
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public void close() {
+        synchronized (idle) {
+            for (PooledConnection pc : idle) {
+                pc.closeQuietly();
+            }
+            idle.clear();
+        }
+    }
+
+    public class PooledConnection {
+
+        private final Connection cn;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+        private long lastUsed = System.currentTimeMillis();
+        private boolean broken = false;
+
+        private PooledConnection(Connection cn) {
+            this.cn = cn;
+        }
+
+        public Connection getConnection() {
+            return cn;
+        }
+
+        /**
+         * @return a cached statement, don't close it
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement st = statements.get(sql);
+            if (st == null) {
+                st = cn.prepareStatement(sql);
+                statements.put(sql, st);
+            }
+            return st;
+        }
+
+        /**
+         * the connection failed, close it instead of reusing it
+         */
+        public void invalidate() {
+            broken = true;
+        }
+
+        /**
+         * give the connection back, an open transaction is rolled back
+         */
+        public void release() {
+            try {
+                if (!broken && !autoCommit) {
+                    cn.rollback();
+                }
+                if (!broken && !cn.isClosed()) {
+                    lastUsed = System.currentTimeMillis();
+                    synchronized (idle) {
+                        idle.addFirst(this);
+                    }
+                    return;
+                }
+            } catch (SQLException e) {
+            } finally {
+                permits.release();
+            }
+            closeQuietly();
+        }
+
+        private void closeQuietly() {
+            try {
+                cn.close();
+            } catch (SQLException e) {
+            }
+        }
+    }
+}
@@ -15,31 +15,232 @@ import java.util.Properties;
 public class DataBase {
 
     private static String jdbcUrl = null;
+    private static String replicaJdbcUrl = null;
     private static String dbUser = null;
     private static String dbPass = null;
     private static String jdbcClass = null;
     private static String recursor = null;
+    private static String recursorSelection = null;
+    private static int dnsRetries = 1;
+    private static int recursorEjectAfter = 5;
+    private static long recursorEjectMillis = 10000;
+    private static int dnsMaxInFlight = 2000;
+    private static int dnsTimeoutMillis = 2000;
+    private static int dnsPort = 53;
+    private static int dnsCacheSize = 100000;
+    private static int dnsCacheMaxTtl = 3600;
+    private static int dnsServfailTtl = 30;
+    private static String delegationCheck = "soa";
+    private static int logQueueSize = 100000;
+    private static String logQueuePolicy = null;
+    private static int logBufferSize = 1048576;
+    private static long logFlushMillis = 1000;
+    private static int markerBatchSize = 500;
+    private static int nameCacheSize = 10000;
+    private static int largeZoneRecords = 5000;
+    private static int largeZoneChunk = 256;
+    private static int largeZoneParallelism = Runtime.getRuntime().availableProcessors();
+    private static int recordPageSize = 10000;
+    private static int metricsPort = 0;
+    private static String executionMode = "threads";
+    private static int virtualMaxConcurrency = 10000;
+    private static int stageFetchThreads = 8;
+    private static int stageResolveThreads = 2;
+    private static int stageResolveConcurrency = 2000;
+    private static int stageValidateThreads = Runtime.getRuntime().availableProcessors();
+    private static int stagePersistThreads = 2;
+    private static int stageQueueSize = 1000;
+    private static boolean adaptiveConcurrency = false;
+    private static long adaptiveIntervalMillis = 1000;
+    private static int workersMin = 4;
+    private static int workersMax = 100;
+    private static int dnsWindowMin = 16;
+    private static int dnsWindowInitial = 64;
+    private static int dnsTimeoutMaxMillis = 10000;
+    private static double dnsMaxTimeoutRate = 0.01;
+    private static int poolMaxSize = 20;
+    private static long poolValidateAfterMillis = 30000;
+    private static long poolBorrowTimeoutMillis = 60000;
+    private static ConnectionPool readPool = null;
+    private static ConnectionPool writePool = null;
+    private static boolean incremental = false;
+    private static String stateFile = null;
+    private static int recheckAfterHours = 168;
+    private static String checkpointFile = null;
+    private static long checkpointIntervalMillis = 30000;
+    private static String scanMode = null;
+    private static int idQueueSize = 20000;
+    private static int idChunkSize = 64;
+    private static int scanPageSize = 10000;
+    private static int zoneQueueSize = 2000;
+    private static String offlineDomainsFile = null;
+    private static String offlineRecordsFile = null;
+    private static String offlineDomainColumns = null;
+    private static String offlineRecordColumns = null;
+    private static int offlineChunkSize = 67108864;
+    private static boolean offlineMysqlBatch = false;
+    private static String findingsFile = null;
+    private static String leaseSweep = null;
+    private static long leaseRangeSize = 10000;
+    private static int leaseTtlSeconds = 120;
+    private static long daemonWindowMinutes = 0;
+    private static long daemonTickMillis = 1000;
+    private static long daemonRefreshMinutes = 15;
+    private static String priorityChangedQuery = null;
+    private static String priorityBrokenQuery = null;
 
     static {
         Properties cduProperties = new Properties();
         try {
-            BufferedInputStream stream = new BufferedInputStream(new FileInputStream(System.getProperty("user.home") + "/.pdnsdbvalidator.properties"));
+            // -Dpdnsdbvalidator.config=... for test setups
+            String config = System.getProperty("pdnsdbvalidator.config", System.getProperty("user.home") + "/.pdnsdbvalidator.properties");
+            BufferedInputStream stream = new BufferedInputStream(new FileInputStream(config));
             cduProperties.load(stream);
             stream.close();
         } catch (IOException ex) {
             System.out.println("could not load properties: " + ex.getMessage());
         }
         jdbcUrl = cduProperties.getProperty("jdbcUrl", "jdbc:mysql://127.0.0.1:3306/db?useServerPrepStmts=true");
+        // empty: read from the primary as well
+        replicaJdbcUrl = cduProperties.getProperty("replicaJdbcUrl", "");
         dbUser = cduProperties.getProperty("dbUser", "root");
         dbPass = cduProperties.getProperty("dbPass", "");
         jdbcClass = cduProperties.getProperty("jdbcClass", "com.mysql.jdbc.Driver");
+        // comma separated, each "address[;weight=N][;qps=N]"
         recursor = cduProperties.getProperty("recursor", "1.1.1.1");
+        // leastLatency or weighted
+        recursorSelection = cduProperties.getProperty("recursorSelection", RecursorPool.LEAST_LATENCY);
+        // a timed out query is sent again to another recursor
+        dnsRetries = Integer.parseInt(cduProperties.getProperty("dnsRetries", "1"));
+        recursorEjectAfter = Integer.parseInt(cduProperties.getProperty("recursorEjectAfter", "5"));
+        recursorEjectMillis = Long.parseLong(cduProperties.getProperty("recursorEjectMillis", "10000"));
+        dnsMaxInFlight = Integer.parseInt(cduProperties.getProperty("dnsMaxInFlight", "2000"));
+        dnsTimeoutMillis = Integer.parseInt(cduProperties.getProperty("dnsTimeoutMillis", "2000"));
+        // port of all recursors and parent servers
+        dnsPort = Integer.parseInt(cduProperties.getProperty("dnsPort", "53"));
+        // 0 disables the response cache
+        dnsCacheSize = Integer.parseInt(cduProperties.getProperty("dnsCacheSize", "100000"));
+        dnsCacheMaxTtl = Integer.parseInt(cduProperties.getProperty("dnsCacheMaxTtl", "3600"));
+        dnsServfailTtl = Integer.parseInt(cduProperties.getProperty("dnsServfailTtl", "30"));
+        // soa: SOA query through the recursors, parent: NS query to the parent's servers
+        delegationCheck = cduProperties.getProperty("delegationCheck", "soa");
+        // block: workers wait for the log writer, drop: lines are counted and thrown away
+        logQueueSize = Integer.parseInt(cduProperties.getProperty("logQueueSize", "100000"));
+        logQueuePolicy = cduProperties.getProperty("logQueuePolicy", "block");
+        logBufferSize = Integer.parseInt(cduProperties.getProperty("logBufferSize", "1048576"));
+        logFlushMillis = Long.parseLong(cduProperties.getProperty("logFlushMillis", "1000"));
+        markerBatchSize = Integer.parseInt(cduProperties.getProperty("markerBatchSize", "500"));
+        // parsed names kept per worker, 0 disables
+        nameCacheSize = Integer.parseInt(cduProperties.getProperty("nameCacheSize", "10000"));
+        // zones with more records are checked in parallel chunks, 0 disables
+        largeZoneRecords = Integer.parseInt(cduProperties.getProperty("largeZoneRecords", "5000"));
+        largeZoneChunk = Integer.parseInt(cduProperties.getProperty("largeZoneChunk", "256"));
+        largeZoneParallelism = Integer.parseInt(cduProperties.getProperty("largeZoneParallelism",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        // records kept in memory per zone, larger zones are read page by page
+        recordPageSize = Integer.parseInt(cduProperties.getProperty("recordPageSize", "10000"));
+        // Prometheus endpoint on 127.0.0.1, 0 disables
+        metricsPort = Integer.parseInt(cduProperties.getProperty("metricsPort", "0"));
+        // threads: fixed worker threads, virtual: one virtual thread per zone (Java 21+),
+        // staged: a thread pool per stage, connected by bounded queues
+        executionMode = cduProperties.getProperty("executionMode", "threads");
+        virtualMaxConcurrency = Integer.parseInt(cduProperties.getProperty("virtualMaxConcurrency", "10000"));
+        stageFetchThreads = Integer.parseInt(cduProperties.getProperty("stageFetchThreads", "8"));
+        stageResolveThreads = Integer.parseInt(cduProperties.getProperty("stageResolveThreads", "2"));
+        // zones waiting for or holding an SOA answer
+        stageResolveConcurrency = Integer.parseInt(cduProperties.getProperty("stageResolveConcurrency", "2000"));
+        stageValidateThreads = Integer.parseInt(cduProperties.getProperty("stageValidateThreads",
+                Integer.toString(Runtime.getRuntime().availableProcessors())));
+        stagePersistThreads = Integer.parseInt(cduProperties.getProperty("stagePersistThreads", "2"));
+        stageQueueSize = Integer.parseInt(cduProperties.getProperty("stageQueueSize", "1000"));
+        // adaptive (opt-in): workers, DNS window and timeout move within the bounds,
+        // dnsMaxInFlight is the upper bound of the window; the timeout only
+        // grows from dnsTimeoutMillis up to dnsTimeoutMaxMillis, a slow but
+        // answering server must not be taken for a missing delegation
+        adaptiveConcurrency = Boolean.parseBoolean(cduProperties.getProperty("adaptiveConcurrency", "false"));
+        adaptiveIntervalMillis = Long.parseLong(cduProperties.getProperty("adaptiveIntervalMillis", "1000"));
+        workersMin = Integer.parseInt(cduProperties.getProperty("workersMin", "4"));
+        workersMax = Integer.parseInt(cduProperties.getProperty("workersMax", "100"));
+        dnsWindowMin = Integer.parseInt(cduProperties.getProperty("dnsWindowMin", "16"));
+        dnsWindowInitial = Integer.parseInt(cduProperties.getProperty("dnsWindowInitial", "64"));
+        dnsTimeoutMaxMillis = Integer.parseInt(cduProperties.getProperty("dnsTimeoutMaxMillis", "10000"));
+        dnsMaxTimeoutRate = Double.parseDouble(cduProperties.getProperty("dnsMaxTimeoutRate", "0.01"));
+        poolMaxSize = Integer.parseInt(cduProperties.getProperty("poolMaxSize", "20"));
+        poolValidateAfterMillis = Long.parseLong(cduProperties.getProperty("poolValidateAfterMillis", "30000"));
+        poolBorrowTimeoutMillis = Long.parseLong(cduProperties.getProperty("poolBorrowTimeoutMillis", "60000"));
+        // incremental: skip zones unchanged since their last conclusive check
+        incremental = Boolean.parseBoolean(cduProperties.getProperty("incremental", "false"));
+        stateFile = cduProperties.getProperty("stateFile", System.getProperty("user.home") + "/.pdnsdbvalidator.state");
+        recheckAfterHours = Integer.parseInt(cduProperties.getProperty("recheckAfterHours", "168"));
+        checkpointFile = cduProperties.getProperty("checkpointFile", System.getProperty("user.home") + "/.pdnsdbvalidator.checkpoint");
+        checkpointIntervalMillis = Long.parseLong(cduProperties.getProperty("checkpointIntervalMillis", "30000"));
+        // byId: queue domain ids, workers query each zone
+        // stream: one sequential domains/records scan, workers get complete zones
+        // offline: like stream, but from export files, findings go to findingsFile
+        scanMode = cduProperties.getProperty("scanMode", "byId");
+        idQueueSize = Integer.parseInt(cduProperties.getProperty("idQueueSize", "20000"));
+        // byId: ids a worker claims at once from the id index
+        idChunkSize = Integer.parseInt(cduProperties.getProperty("idChunkSize", "64"));
+        scanPageSize = Integer.parseInt(cduProperties.getProperty("scanPageSize", "10000"));
+        zoneQueueSize = Integer.parseInt(cduProperties.getProperty("zoneQueueSize", "2000"));
+        // mysqldump --tab output, records sorted by domain_id
+        offlineDomainsFile = cduProperties.getProperty("offlineDomainsFile", "domains.txt");
+        offlineRecordsFile = cduProperties.getProperty("offlineRecordsFile", "records.txt");
+        // column order of the exports without a header row
+        offlineDomainColumns = cduProperties.getProperty("offlineDomainColumns", "id,name,master,last_check,type,notified_serial,account");
+        offlineRecordColumns = cduProperties.getProperty("offlineRecordColumns", "id,domain_id,name,type,content,ttl,prio,disabled,ordername,auth");
+        offlineChunkSize = Integer.parseInt(cduProperties.getProperty("offlineChunkSize", "67108864"));
+        // exports from mysql -B: a bare NULL field is NULL, with --tab it is text
+        offlineMysqlBatch = Boolean.parseBoolean(cduProperties.getProperty("offlineMysqlBatch", "false"));
+        findingsFile = cduProperties.getProperty("findingsFile", System.getProperty("user.home") + "/pdns-db-validator.findings");
+        // instances with the same sweep share its domain_id ranges, empty: single instance
+        leaseSweep = cduProperties.getProperty("leaseSweep", "");
+        leaseRangeSize = Long.parseLong(cduProperties.getProperty("leaseRangeSize", "10000"));
+        leaseTtlSeconds = Integer.parseInt(cduProperties.getProperty("leaseTtlSeconds", "120"));
+        // keep running and check every domain once per window (1440 = daily), 0: one sweep
+        daemonWindowMinutes = Long.parseLong(cduProperties.getProperty("daemonWindowMinutes", "0"));
+        daemonTickMillis = Long.parseLong(cduProperties.getProperty("daemonTickMillis", "1000"));
+        // new domains are picked up after at most this long
+        daemonRefreshMinutes = Long.parseLong(cduProperties.getProperty("daemonRefreshMinutes", "15"));
+        // byId: domain ids checked before all others, first the changed, then the broken ones; empty disables
+        // default: SOA serial above notified_serial, i.e. edited and not yet notified
+        priorityChangedQuery = cduProperties.getProperty("priorityChangedQuery",
+                "select d.id from domains d join records r on r.domain_id = d.id and r.type = 'SOA' "
+                + "where d.notified_serial is not null "
+                + "and cast(substring_index(substring_index(r.content, ' ', 3), ' ', -1) as unsigned) > d.notified_serial");
+        priorityBrokenQuery = cduProperties.getProperty("priorityBrokenQuery",
+                "select distinct domain_id from domainmetadata where kind = 'broken'");
     }
 
     public static String getJdbcUrl() {
         return jdbcUrl;
     }
 
+    public static String getReplicaJdbcUrl() {
+        return replicaJdbcUrl;
+    }
+
+    /**
+     * autocommit connections to the replica if configured, else the primary
+     */
+    public static synchronized ConnectionPool getReadPool() throws ClassNotFoundException {
+        if (readPool == null) {
+            String url = replicaJdbcUrl.isEmpty() ? jdbcUrl : replicaJdbcUrl;
+            readPool = new ConnectionPool("read", url, dbUser, dbPass, poolMaxSize, true, poolValidateAfterMillis, poolBorrowTimeoutMillis);
+        }
+        return readPool;
+    }
+
+    /**
+     * transactional connections to the primary
+     */
+    public static synchronized ConnectionPool getWritePool() throws ClassNotFoundException {
+        if (writePool == null) {
+            writePool = new ConnectionPool("write", jdbcUrl, dbUser, dbPass, poolMaxSize, false, poolValidateAfterMillis, poolBorrowTimeoutMillis);
+        }
+        return writePool;
+    }
+
     public static String getJdbcClass() {
         return jdbcClass;
     }
@@ -55,4 +256,266 @@ public class DataBase {
     public static String getRecursor() {
         return recursor;
     }
+
+    public static String getRecursorSelection() {
+        return recursorSelection;
+    }
+
+    public static int getDnsRetries() {
+        return dnsRetries;
+    }
+
+    public static int getRecursorEjectAfter() {
+        return recursorEjectAfter;
+    }
+
+    public static long getRecursorEjectMillis() {
+        return recursorEjectMillis;
+    }
+
+    public static int getDnsMaxInFlight() {
+        return dnsMaxInFlight;
+    }
+
+    public static int getDnsTimeoutMillis() {
+        return dnsTimeoutMillis;
+    }
+
+    public static int getDnsPort() {
+        return dnsPort;
+    }
+
+    public static int getDnsCacheSize() {
+        return dnsCacheSize;
+    }
+
+    public static int getDnsCacheMaxTtl() {
+        return dnsCacheMaxTtl;
+    }
+
+    public static int getDnsServfailTtl() {
+        return dnsServfailTtl;
+    }
+
+    public static String getDelegationCheck() {
+        return delegationCheck;
+    }
+
+    public static int getLogQueueSize() {
+        return logQueueSize;
+    }
+
+    public static String getLogQueuePolicy() {
+        return logQueuePolicy;
+    }
+
+    public static int getLogBufferSize() {
+        return logBufferSize;
+    }
+
+    public static long getLogFlushMillis() {
+        return logFlushMillis;
+    }
+
+    public static int getMarkerBatchSize() {
+        return markerBatchSize;
+    }
+
+    public static int getNameCacheSize() {
+        return nameCacheSize;
+    }
+
+    public static int getLargeZoneRecords() {
+        return largeZoneRecords;
+    }
+
+    public static int getLargeZoneChunk() {
+        return largeZoneChunk;
+    }
+
+    public static int getLargeZoneParallelism() {
+        return largeZoneParallelism;
+    }
+
+    public static int getRecordPageSize() {
+        return recordPageSize;
+    }
+
+    public static int getMetricsPort() {
+        return metricsPort;
+    }
+
+    public static String getExecutionMode() {
+        return executionMode;
+    }
+
+    public static int getVirtualMaxConcurrency() {
+        return virtualMaxConcurrency;
+    }
+
+    public static int getStageFetchThreads() {
+        return stageFetchThreads;
+    }
+
+    public static int getStageResolveThreads() {
+        return stageResolveThreads;
+    }
+
+    public static int getStageResolveConcurrency() {
+        return stageResolveConcurrency;
+    }
+
+    public static int getStageValidateThreads() {
+        return stageValidateThreads;
+    }
+
+    public static int getStagePersistThreads() {
+        return stagePersistThreads;
+    }
+
+    public static int getStageQueueSize() {
+        return stageQueueSize;
+    }
+
+    public static boolean isAdaptiveConcurrency() {
+        return adaptiveConcurrency;
+    }
+
+    public static long getAdaptiveIntervalMillis() {
+        return adaptiveIntervalMillis;
+    }
+
+    public static int getWorkersMin() {
+        return workersMin;
+    }
+
+    public static int getWorkersMax() {
+        return workersMax;
+    }
+
+    public static int getDnsWindowMin() {
+        return dnsWindowMin;
+    }
+
+    public static int getDnsWindowInitial() {
+        return dnsWindowInitial;
+    }
+
+    public static int getDnsTimeoutMaxMillis() {
+        return dnsTimeoutMaxMillis;
+    }
+
+    public static double getDnsMaxTimeoutRate() {
+        return dnsMaxTimeoutRate;
+    }
+
+    public static boolean isIncremental() {
+        return incremental;
+    }
+
+    public static String getStateFile() {
+        return stateFile;
+    }
+
+    public static int getRecheckAfterHours() {
+        return recheckAfterHours;
+    }
+
+    public static String getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public static long getCheckpointIntervalMillis() {
+        return checkpointIntervalMillis;
+    }
+
+    public static String getScanMode() {
+        return scanMode;
+    }
+
+    /**
+     * @return what is wrong with the settings, null if they can be used
+     */
+    public static String getConfigError() {
+        if (!"byId".equals(scanMode) && !"stream".equals(scanMode) && !"offline".equals(scanMode)) {
+            return "scanMode must be byId, stream or offline, not '" + scanMode + "'";
+        }
+        return null;
+    }
+
+    public static int getIdQueueSize() {
+        return idQueueSize;
+    }
+
+    public static int getIdChunkSize() {
+        return idChunkSize;
+    }
+
+    public static int getScanPageSize() {
+        return scanPageSize;
+    }
+
+    public static int getZoneQueueSize() {
+        return zoneQueueSize;
+    }
+
+    public static String getOfflineDomainsFile() {
+        return offlineDomainsFile;
+    }
+
+    public static String getOfflineRecordsFile() {
+        return offlineRecordsFile;
+    }
+
+    public static String getOfflineDomainColumns() {
+        return offlineDomainColumns;
+    }
+
+    public static String getOfflineRecordColumns() {
+        return offlineRecordColumns;
+    }
+
+    public static int getOfflineChunkSize() {
+        return offlineChunkSize;
+    }
+
+    public static boolean isOfflineMysqlBatch() {
+        return offlineMysqlBatch;
+    }
+
+    public static String getFindingsFile() {
+        return findingsFile;
+    }
+
+    public static String getLeaseSweep() {
+        return leaseSweep;
+    }
+
+    public static long getLeaseRangeSize() {
+        return leaseRangeSize;
+    }
+
+    public static int getLeaseTtlSeconds() {
+        return leaseTtlSeconds;
+    }
+
+    public static long getDaemonWindowMinutes() {
+        return daemonWindowMinutes;
+    }
+
+    public static long getDaemonTickMillis() {
+        return daemonTickMillis;
+    }
+
+    public static long getDaemonRefreshMinutes() {
+        return daemonRefreshMinutes;
+    }
+
+    public static String getPriorityChangedQuery() {
+        return priorityChangedQuery;
+    }
+
+    public static String getPriorityBrokenQuery() {
+        return priorityBrokenQuery;
+    }
 }
@@ -0,0 +1,279 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Asks the authoritative servers of a zone's parent for its NS delegation
+ * (a non-recursive NS query) instead of sending a SOA query through the
+ * recursors.
+ *
+ * The parent is the zone name without its first label, or further up if
+ * that is no zone cut. Its servers are looked up once through the
+ * recursors, with the addresses from the glue or from A queries, and kept
+ * for the TTL of the parent's NS set, at most maxTtl seconds; a failed
+ * lookup is kept for failureTtl seconds. Zones under the same parent share
+ * the entry and a RecursorPool over its servers, so selection, ejection
+ * and retries work as for the recursors. All parent servers share one
+ * AsyncResolver socket.
+ *
+ * @author mieslingert
+ */
+public class DelegationResolver {
+
+    private final DnsClient recursor;
+    private final BiFunction<Message, InetSocketAddress, CompletableFuture<Message>> transport;
+    private AsyncResolver socket = null;
+    private final String selection;
+    private final int maxInFlight;
+    private final int timeoutMillis;
+    private final int retries;
+    private final int ejectAfter;
+    private final long ejectMillis;
+    private final int port;
+    private final long maxTtlMillis;
+    private final long failureTtlMillis;
+    private final Metrics metrics;
+    private final ConcurrentHashMap<Name, Parent> parents = new ConcurrentHashMap<>();
+    // runs the steps after a lookup, they may block on a window
+    private final ExecutorService lookups;
+
+    /**
+     * @param recursor looks up the parents' servers
+     */
+    public DelegationResolver(DnsClient recursor, String selection, int maxInFlight, int timeoutMillis, int retries,
+            int ejectAfter, long ejectMillis, int port, int maxTtl, int failureTtl, Metrics metrics) throws IOException {
+        this(recursor, new AsyncResolver((InetSocketAddress) null, maxInFlight, timeoutMillis), selection, maxInFlight,
+                timeoutMillis, retries, ejectAfter, ejectMillis, port, maxTtl, failureTtl, metrics);
+    }
+
+    private DelegationResolver(DnsClient recursor, AsyncResolver socket, String selection, int maxInFlight, int timeoutMillis,
+            int retries, int ejectAfter, long ejectMillis, int port, int maxTtl, int failureTtl, Metrics metrics) {
+        this(recursor, socket::sendAsync, selection, maxInFlight, timeoutMillis, retries, ejectAfter, ejectMillis, port, maxTtl, failureTtl, metrics);
+        this.socket = socket;
+    }
+
+    DelegationResolver(DnsClient recursor, BiFunction<Message, InetSocketAddress, CompletableFuture<Message>> transport,
+            String selection, int maxInFlight, int timeoutMillis, int retries, int ejectAfter, long ejectMillis, int port,
+            int maxTtl, int failureTtl, Metrics metrics) {
+        this.recursor = recursor;
+        this.transport = transport;
+        this.selection = selection;
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.ejectAfter = ejectAfter;
+        this.ejectMillis = ejectMillis;
+        this.port = port;
+        this.maxTtlMillis = maxTtl * 1000L;
+        this.failureTtlMillis = failureTtl * 1000L;
+        this.metrics = metrics;
+        this.lookups = Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r);
+            t.setName("delegation-lookup");
+            t.setDaemon(true);
+            return t;
+        });
+        metrics.gauge("delegation_parents", () -> parents.size());
+    }
+
+    /**
+     * @return the parent's answer: a referral, NXDOMAIN or, if the parent
+     * serves the zone itself, the NS set in the answer section
+     */
+    public CompletableFuture<Message> queryDelegation(Name zone) {
+        if (zone.labels() < 2) {
+            CompletableFuture<Message> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IOException("no parent: " + zone));
+            return failed;
+        }
+        final Message query = Message.newQuery(Record.newRecord(zone, Type.NS, DClass.IN));
+        query.getHeader().unsetFlag(Flags.RD);
+        CompletableFuture<DnsClient> servers = serversOf(new Name(zone, 1));
+        if (servers.isDone()) {
+            return servers.thenCompose(pool -> pool.sendAsync(query));
+        }
+        // not on the receiver thread, sendAsync() may wait for the window
+        return servers.thenComposeAsync(pool -> pool.sendAsync(query), lookups);
+    }
+
+    /**
+     * @return NS names of the zone in the parent's answer, empty if it is
+     * not delegated
+     */
+    public static Set<Name> delegatedTo(Message response, Name zone) {
+        Set<Name> ns = new LinkedHashSet<>();
+        if (response.getRcode() != Rcode.NOERROR) {
+            return ns;
+        }
+        for (int section : new int[]{Section.ANSWER, Section.AUTHORITY}) {
+            for (Record r : response.getSectionArray(section)) {
+                if (r.getType() == Type.NS && r.getName().equals(zone)) {
+                    ns.add(((NSRecord) r).getTarget());
+                }
+            }
+        }
+        return ns;
+    }
+
+    /**
+     * servers of a parent, shared by all zones below it
+     */
+    CompletableFuture<DnsClient> serversOf(Name parent) {
+        while (true) {
+            Parent p = parents.get(parent);
+            if (p != null && p.expires > System.currentTimeMillis()) {
+                return p.servers;
+            }
+            Parent fresh = new Parent();
+            if (p == null ? parents.putIfAbsent(parent, fresh) != null : !parents.replace(parent, p, fresh)) {
+                // someone else started the lookup
+                continue;
+            }
+            metrics.count("parent_lookups");
+            lookup(parent, fresh).whenComplete((pool, e) -> {
+                if (e != null) {
+                    metrics.count("parent_lookup_failures");
+                    fresh.expires = System.currentTimeMillis() + failureTtlMillis;
+                    fresh.servers.completeExceptionally(e);
+                } else {
+                    fresh.expires = System.currentTimeMillis() + fresh.ttlMillis;
+                    fresh.servers.complete(pool);
+                }
+            });
+            return fresh.servers;
+        }
+    }
+
+    private CompletableFuture<DnsClient> lookup(final Name parent, final Parent entry) {
+        // not on the receiver thread, the recursors may wait for their window
+        return recursor.query(parent, Type.NS).thenComposeAsync(response -> {
+            List<NSRecord> ns = new ArrayList<>();
+            long ttl = maxTtlMillis;
+            for (Record r : response.getSectionArray(Section.ANSWER)) {
+                if (r.getType() == Type.NS && r.getName().equals(parent)) {
+                    ns.add((NSRecord) r);
+                    ttl = Math.min(ttl, r.getTTL() * 1000);
+                }
+            }
+            if (ns.isEmpty()) {
+                if (response.getRcode() == Rcode.NOERROR && parent.labels() > 1) {
+                    // no zone cut here, the servers of the next one up serve it
+                    entry.ttlMillis = maxTtlMillis;
+                    return serversOf(new Name(parent, 1));
+                }
+                throw new CompletionException(new IOException("no NS for " + parent + ": " + Rcode.string(response.getRcode())));
+            }
+            entry.ttlMillis = ttl;
+
+            Map<Name, List<InetAddress>> glue = new HashMap<>();
+            for (Record r : response.getSectionArray(Section.ADDITIONAL)) {
+                if (r.getType() == Type.A) {
+                    glue.computeIfAbsent(r.getName(), k -> new ArrayList<>()).add(((ARecord) r).getAddress());
+                }
+            }
+            List<CompletableFuture<List<InetAddress>>> addresses = new ArrayList<>();
+            for (NSRecord r : ns) {
+                List<InetAddress> a = glue.get(r.getTarget());
+                addresses.add(a != null ? CompletableFuture.completedFuture(a) : addressesOf(r.getTarget()));
+            }
+            return CompletableFuture.allOf(addresses.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+                RecursorPool pool = new RecursorPool(selection, maxInFlight, timeoutMillis, retries, ejectAfter, ejectMillis, metrics);
+                Set<InetAddress> seen = new LinkedHashSet<>();
+                for (CompletableFuture<List<InetAddress>> f : addresses) {
+                    for (InetAddress a : f.join()) {
+                        if (seen.add(a)) {
+                            pool.add(a.getHostAddress(), 1, 0, new Server(new InetSocketAddress(a, port)));
+                        }
+                    }
+                }
+                if (seen.isEmpty()) {
+                    throw new CompletionException(new IOException("no address for the servers of " + parent));
+                }
+                return new MeteredDnsClient(pool, metrics);
+            });
+        }, lookups);
+    }
+
+    /**
+     * @return IPv4 addresses of a server without glue, empty if it has none
+     */
+    private CompletableFuture<List<InetAddress>> addressesOf(Name server) {
+        return recursor.query(server, Type.A).handle((response, e) -> {
+            List<InetAddress> a = new ArrayList<>();
+            if (e == null) {
+                for (Record r : response.getSectionArray(Section.ANSWER)) {
+                    if (r.getType() == Type.A) {
+                        a.add(((ARecord) r).getAddress());
+                    }
+                }
+            }
+            return a;
+        });
+    }
+
+    public int getParents() {
+        return parents.size();
+    }
+
+    public void shutdown() {
+        lookups.shutdown();
+        if (socket != null) {
+            socket.shutdown();
+        }
+    }
+
+    private static class Parent {
+
+        private final CompletableFuture<DnsClient> servers = new CompletableFuture<>();
+        // until the lookup is done
+        private volatile long expires = Long.MAX_VALUE;
+        private volatile long ttlMillis = 0;
+    }
+
+    /**
+     * one parent server, sent through the shared socket
+     */
+    private class Server implements DnsClient {
+
+        private final InetSocketAddress address;
+
+        Server(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        public CompletableFuture<Message> sendAsync(Message query) {
+            return transport.apply(query, address);
+        }
+
+        public void shutdown() {
+            // the socket is shared
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.TSIG;
+
+/**
+ * Future based resolver. The blocking and listener variants of
+ * org.xbill.DNS.Resolver are built on top of sendAsync(), its setters do
+ * nothing unless an implementation has a use for them.
+ *
+ * Futures may complete on an I/O thread, so callbacks must not block.
+ *
+ * @author mieslingert
+ */
+public interface DnsClient extends Resolver {
+
+    CompletableFuture<Message> sendAsync(Message query);
+
+    void shutdown();
+
+    default CompletableFuture<Message> query(Name name, int type) {
+        return sendAsync(Message.newQuery(Record.newRecord(name, type, DClass.IN)));
+    }
+
+    default Message send(Message query) throws IOException {
+        try {
+            return sendAsync(query).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    default Object sendAsync(Message query, ResolverListener listener) {
+        final Object id = new Object();
+        sendAsync(query).whenComplete((response, e) -> {
+            if (e != null) {
+                listener.handleException(id, e instanceof Exception ? (Exception) e : new Exception(e));
+            } else {
+                listener.receiveMessage(id, response);
+            }
+        });
+        return id;
+    }
+
+    // org.xbill.DNS.Resolver
+    default void setPort(int port) {
+    }
+
+    default void setTCP(boolean flag) {
+    }
+
+    default void setIgnoreTruncation(boolean flag) {
+    }
+
+    default void setEDNS(int level) {
+    }
+
+    default void setEDNS(int level, int payloadSize, int flags, List options) {
+    }
+
+    default void setTSIGKey(TSIG key) {
+    }
+
+    default void setTimeout(int secs, int msecs) {
+    }
+
+    default void setTimeout(int secs) {
+        setTimeout(secs, 0);
+    }
+}
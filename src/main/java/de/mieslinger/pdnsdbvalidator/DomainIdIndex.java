@@ -0,0 +1,246 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * All domain ids of a run in one sorted long[] (8 bytes per domain), handed
+ * out in chunks instead of one id per lock round trip.
+ *
+ * Each polling thread owns a chunk of contiguous positions and takes ids
+ * from it with a CAS on its own AtomicLong. An empty chunk is refilled from
+ * the shared cursor, one short lock per chunk. Once the cursor is exhausted, a
+ * thread steals the upper half of the fullest chunk of another thread, so a
+ * slow zone does not hold back the ids queued behind it.
+ *
+ * Ids are added by one thread before close(), polls wait until then.
+ * Claimed chunks are registered with the checkpoint under the same lock,
+ * so the checkpoint still sees ascending dispatches.
+ *
+ * Priority ids (recently changed or broken zones) are handed out first, in
+ * their given order and before close(). They are not registered with the
+ * checkpoint, a resumed run checks them again.
+ *
+ * @author mieslingert
+ */
+public class DomainIdIndex implements DomainIdSource {
+
+    private long[] ids = new long[1024];
+    private int length = 0;
+    private final int chunkSize;
+    private final Checkpoint checkpoint;
+    private final CountDownLatch sealed = new CountDownLatch(1);
+    private final AtomicInteger cursor = new AtomicInteger();
+    private volatile long[] priority = new long[0];
+    private final AtomicInteger priorityCursor = new AtomicInteger();
+    // moves the cursor and registers the chunk with the checkpoint in one step
+    private final Object claimLock = new Object();
+    private final List<Chunk> chunks = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Chunk> own = new ThreadLocal<Chunk>() {
+        @Override
+        protected Chunk initialValue() {
+            Chunk c = new Chunk();
+            chunks.add(c);
+            return c;
+        }
+    };
+
+    /**
+     * @param checkpoint told about dispatched ids, may be null
+     */
+    public DomainIdIndex(int chunkSize, Checkpoint checkpoint) {
+        this.chunkSize = chunkSize;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * ids must be added in ascending order, before close()
+     */
+    public void add(long id) {
+        if (length > 0 && id <= ids[length - 1]) {
+            throw new IllegalArgumentException("domain ids not ascending: " + id + " after " + ids[length - 1]);
+        }
+        if (length == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+        }
+        ids[length++] = id;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * ids to hand out before all others, in this order; set before the
+     * first poll
+     */
+    public void setPriority(long[] priority) {
+        this.priority = priority;
+    }
+
+    public void close() {
+        if (sealed.getCount() > 0) {
+            // the priority ids are not handed out twice
+            long[] skip = Arrays.copyOf(priority, priority.length);
+            Arrays.sort(skip);
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < length; i++) {
+                while (j < skip.length && skip[j] < ids[i]) {
+                    j++;
+                }
+                if (j == skip.length || skip[j] != ids[i]) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            length = kept;
+            ids = Arrays.copyOf(ids, length);
+            sealed.countDown();
+        }
+    }
+
+    public long poll(long timeout, TimeUnit unit) throws InterruptedException {
+        if (priorityCursor.get() < priority.length) {
+            int p = priorityCursor.getAndIncrement();
+            if (p < priority.length) {
+                return priority[p];
+            }
+        }
+        if (!sealed.await(timeout, unit)) {
+            return LongRingBuffer.EMPTY;
+        }
+        Chunk c = own.get();
+        long id = c.next();
+        if (id == LongRingBuffer.EMPTY && (claim(c) || steal(c))) {
+            id = c.next();
+        }
+        return id;
+    }
+
+    private boolean claim(Chunk c) {
+        if (cursor.get() >= length) {
+            return false;
+        }
+        int from;
+        int to;
+        synchronized (claimLock) {
+            from = cursor.get();
+            if (from >= length) {
+                return false;
+            }
+            to = Math.min(length, from + chunkSize);
+            cursor.set(to);
+            if (checkpoint != null) {
+                // the checkpoint relies on ascending ids
+                checkpoint.dispatched(ids, from, to);
+            }
+        }
+        c.set(from, to);
+        return true;
+    }
+
+    private boolean steal(Chunk thief) {
+        while (true) {
+            Chunk victim = null;
+            int most = 0;
+            for (Chunk c : chunks) {
+                int r = c.remaining();
+                if (c != thief && r > most) {
+                    most = r;
+                    victim = c;
+                }
+            }
+            if (victim == null) {
+                return false;
+            }
+            long r = victim.range.get();
+            int pos = pos(r);
+            int end = end(r);
+            if (pos >= end) {
+                continue;
+            }
+            // the owner keeps the lower half, a single id is taken over
+            int mid = pos + (end - pos) / 2;
+            if (victim.range.compareAndSet(r, pack(pos, mid))) {
+                thief.set(mid, end);
+                Metrics.get().count("id_chunks_stolen");
+                return true;
+            }
+        }
+    }
+
+    public boolean isDrained() {
+        if (sealed.getCount() > 0 || cursor.get() < length || priorityCursor.get() < priority.length) {
+            return false;
+        }
+        for (Chunk c : chunks) {
+            if (c.remaining() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int size() {
+        int waiting = Math.max(0, priority.length - priorityCursor.get());
+        if (sealed.getCount() > 0) {
+            return waiting + length;
+        }
+        int size = waiting + Math.max(0, length - cursor.get());
+        for (Chunk c : chunks) {
+            size += c.remaining();
+        }
+        return size;
+    }
+
+    private static long pack(int pos, int end) {
+        return ((long) pos << 32) | (end & 0xffffffffL);
+    }
+
+    private static int pos(long range) {
+        return (int) (range >>> 32);
+    }
+
+    private static int end(long range) {
+        return (int) range;
+    }
+
+    /**
+     * positions [pos, end) of one thread
+     */
+    private class Chunk {
+
+        private final AtomicLong range = new AtomicLong(0);
+
+        void set(int from, int to) {
+            range.set(pack(from, to));
+        }
+
+        long next() {
+            while (true) {
+                long r = range.get();
+                int pos = pos(r);
+                int end = end(r);
+                if (pos >= end) {
+                    return LongRingBuffer.EMPTY;
+                }
+                if (range.compareAndSet(r, pack(pos + 1, end))) {
+                    return ids[pos];
+                }
+            }
+        }
+
+        int remaining() {
+            long r = range.get();
+            return Math.max(0, end(r) - pos(r));
+        }
+    }
+}
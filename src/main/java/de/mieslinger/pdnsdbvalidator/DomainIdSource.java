@@ -0,0 +1,35 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Domain ids for the workers in byId mode.
+ *
+ * @author mieslingert
+ */
+public interface DomainIdSource {
+
+    /**
+     * @return the next id or LongRingBuffer.EMPTY if nothing arrived within
+     * timeout or the source is closed and drained
+     */
+    long poll(long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * no more ids will be added
+     */
+    void close();
+
+    /**
+     * @return true once closed and every id has been taken
+     */
+    boolean isDrained();
+
+    /**
+     * @return ids not taken yet
+     */
+    int size();
+}
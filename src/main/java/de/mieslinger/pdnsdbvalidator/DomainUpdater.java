@@ -3,18 +3,30 @@
  */
 package de.mieslinger.pdnsdbvalidator;
 
-import java.net.InetAddress;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import org.xbill.DNS.Lookup;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xbill.DNS.Message;
 import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SOARecord;
-import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.Section;
 import org.xbill.DNS.Type;
 
 /**
@@ -23,229 +35,1126 @@ import org.xbill.DNS.Type;
  */
 public class DomainUpdater {
 
-    private ConcurrentLinkedQueue<Long> shortDomainQ;
-    private ConcurrentLinkedQueue<String> logFileQ;
-    private ConcurrentLinkedQueue<String> criticalLogFileQ;
+    private DomainIdSource shortDomainQ;
+    private BlockingQueue<Zone> zoneQ;
+    private boolean streaming = false;
+    private LogQueue logFileQ;
+    private LogQueue criticalLogFileQ;
     final LinkedBlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
     private volatile boolean keepOnRunning = true;
     private Thread[] tList = null;
+    // SOA answers waiting to be compared against the DB
+    private final LinkedBlockingQueue<DelegationCheck> delegationQ = new LinkedBlockingQueue<>();
+    private final AtomicInteger pendingDelegationChecks = new AtomicInteger();
+    private DnsClient resolver = null;
+    private RecursorPool recursors = null;
+    // delegationCheck=parent: NS queries to the parents' servers instead of SOA queries
+    private DelegationResolver delegations = null;
+    private volatile boolean noMoreInput = false;
+    // incremental mode only
+    private ValidationState state = null;
+    private long recheckAfterMillis = 0;
+    private Checkpoint checkpoint = null;
+    // offline runs write findings here instead of domainmetadata
+    private FindingsFile findingsFile = null;
+    private CountDownLatch workersDone = null;
+    private final int idleWaitMillis = 200;
+    private final Metrics metrics = Metrics.get();
+    // workers with a higher index are parked, changed by the controller
+    private volatile int activeWorkers = Integer.MAX_VALUE;
+    private ConcurrencyController controller = null;
+    // records of large zones are checked in parallel
+    private LargeZoneChecker largeZoneChecker = null;
 
     private DomainUpdater() {
     }
 
-    public DomainUpdater(ConcurrentLinkedQueue<Long> shortDomainQ,
-            ConcurrentLinkedQueue<String> logFileQ,
-            ConcurrentLinkedQueue<String> criticalLogFileQ,
+    public DomainUpdater(DomainIdSource shortDomainQ,
+            BlockingQueue<Zone> zoneQ,
+            LogQueue logFileQ,
+            LogQueue criticalLogFileQ,
+            Checkpoint checkpoint,
+            FindingsFile findingsFile,
             int fixedPoolSize) throws Exception {
 
         this.shortDomainQ = shortDomainQ;
+        this.zoneQ = zoneQ;
+        // the offline scan delivers complete zones as well
+        this.streaming = "stream".equals(DataBase.getScanMode()) || "offline".equals(DataBase.getScanMode());
         this.logFileQ = logFileQ;
         this.criticalLogFileQ = criticalLogFileQ;
-        this.tList = new Thread[fixedPoolSize];
+        this.checkpoint = checkpoint;
+        this.findingsFile = findingsFile;
+        final RecursorPool recursors = new RecursorPool(DataBase.getRecursor(), DataBase.getRecursorSelection(),
+                DataBase.getDnsMaxInFlight(), DataBase.getDnsTimeoutMillis(), DataBase.getDnsRetries(),
+                DataBase.getRecursorEjectAfter(), DataBase.getRecursorEjectMillis(), metrics);
+        recursors.setPort(DataBase.getDnsPort());
+        this.recursors = recursors;
+        this.resolver = new MeteredDnsClient(recursors, metrics);
+        metrics.gauge("dns_in_flight", () -> recursors.getInFlight());
+        metrics.gauge("delegation_queue", () -> delegationQ.size());
+        metrics.gauge("pending_delegation_checks", () -> pendingDelegationChecks.get());
+        if (DataBase.isIncremental()) {
+            this.state = new ValidationState(DataBase.getStateFile());
+            this.recheckAfterMillis = TimeUnit.HOURS.toMillis(DataBase.getRecheckAfterHours());
+        }
+        if (DataBase.getDnsCacheSize() > 0) {
+            this.resolver = new ResolverCache(resolver, DataBase.getDnsCacheSize(), DataBase.getDnsCacheMaxTtl(), DataBase.getDnsServfailTtl());
+        }
+        if ("parent".equals(DataBase.getDelegationCheck())) {
+            this.delegations = new DelegationResolver(resolver, DataBase.getRecursorSelection(), DataBase.getDnsMaxInFlight(),
+                    DataBase.getDnsTimeoutMillis(), DataBase.getDnsRetries(), DataBase.getRecursorEjectAfter(),
+                    DataBase.getRecursorEjectMillis(), DataBase.getDnsPort(), DataBase.getDnsCacheMaxTtl(),
+                    DataBase.getDnsServfailTtl(), metrics);
+        }
+        if (DataBase.getLargeZoneRecords() > 0) {
+            this.largeZoneChecker = new LargeZoneChecker(resolver, DataBase.getNameCacheSize(),
+                    DataBase.getLargeZoneParallelism(), DataBase.getLargeZoneChunk(), metrics);
+        }
+
+        boolean virtual = "virtual".equals(DataBase.getExecutionMode());
+        boolean staged = "staged".equals(DataBase.getExecutionMode());
+        VirtualDispatcher vd = null;
+        StagedPipeline sp = null;
+        if (virtual) {
+            // fails here on a JDK without virtual threads
+            vd = new VirtualDispatcher(newVirtualThreadPerTaskExecutor(), DataBase.getVirtualMaxConcurrency());
+        } else if (staged) {
+            sp = new StagedPipeline(DataBase.getStageQueueSize(), DataBase.getStageResolveConcurrency());
+        }
+        int threads = fixedPoolSize;
+        if (DataBase.isAdaptiveConcurrency()) {
+            ConcurrencyController.Limit workerLimit;
+            if (virtual) {
+                final AdjustableSemaphore permits = vd.permits;
+                workerLimit = new ConcurrencyController.Limit("workers", DataBase.getVirtualMaxConcurrency(),
+                        DataBase.getWorkersMin(), DataBase.getVirtualMaxConcurrency(), n -> permits.setLimit(n));
+            } else if (staged) {
+                // zones in the DNS stage
+                final AdjustableSemaphore permits = sp.dnsPermits;
+                workerLimit = new ConcurrencyController.Limit("workers", DataBase.getStageResolveConcurrency(),
+                        DataBase.getWorkersMin(), DataBase.getStageResolveConcurrency(), n -> permits.setLimit(n));
+            } else {
+                // all threads are started, the controller decides how many take zones
+                threads = Math.max(fixedPoolSize, DataBase.getWorkersMax());
+                workerLimit = new ConcurrencyController.Limit("workers", fixedPoolSize,
+                        DataBase.getWorkersMin(), threads, n -> activeWorkers = n);
+            }
+            ConcurrencyController.Limit dnsWindow = new ConcurrencyController.Limit("dns_window", DataBase.getDnsWindowInitial(),
+                    DataBase.getDnsWindowMin(), DataBase.getDnsMaxInFlight(), n -> recursors.setMaxInFlight(n));
+            controller = new ConcurrencyController(metrics, DataBase.getAdaptiveIntervalMillis(), DataBase.getDnsMaxTimeoutRate(),
+                    dnsWindow, workerLimit,
+                    DataBase.getDnsTimeoutMillis(), Math.max(DataBase.getDnsTimeoutMillis(), DataBase.getDnsTimeoutMaxMillis()),
+                    ms -> recursors.setTimeout(0, ms), () -> recursors.getInFlight(),
+                    () -> streaming ? zoneQ.size() : shortDomainQ.size());
+            Thread tc = new Thread(controller);
+            tc.setName("concurrency-controller");
+            tc.setDaemon(true);
+            tc.start();
+        }
+
+        if (virtual) {
+            this.workersDone = new CountDownLatch(1);
+            this.tList = new Thread[]{new Thread(vd)};
+            tList[0].setName("virtual-dispatcher");
+            tList[0].start();
+            return;
+        }
 
-        for (int i = 0; i < fixedPoolSize; i++) {
+        if (staged) {
+            this.tList = sp.start();
+            return;
+        }
+
+        this.tList = new Thread[threads];
+        this.workersDone = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
             try {
-                ShortDomainUpdaterWorker sduw = new ShortDomainUpdaterWorker(shortDomainQ, logFileQ, criticalLogFileQ);
+                ShortDomainUpdaterWorker sduw = new ShortDomainUpdaterWorker(i, shortDomainQ, logFileQ, criticalLogFileQ);
                 tList[i] = new Thread(sduw);
                 tList[i].setName("worker-" + i);
                 tList[i].start();
             } catch (Exception e) {
+                workersDone.countDown();
                 e.printStackTrace();
             }
         }
     }
 
+    /**
+     * Called by the producer after the last domain_id or zone is queued.
+     * Workers finish once the queues are empty and every SOA answer is
+     * processed.
+     */
+    public void noMoreInput() {
+        noMoreInput = true;
+        shortDomainQ.close();
+    }
+
+    /**
+     * @return true if all workers have finished
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return workersDone.await(timeout, unit);
+    }
+
     public void shutdown() {
         this.keepOnRunning = false;
+        if (controller != null) {
+            controller.shutdown();
+        }
+        resolver.shutdown();
+        if (delegations != null) {
+            delegations.shutdown();
+        }
+        if (largeZoneChecker != null) {
+            largeZoneChecker.shutdown();
+        }
+        if (state != null) {
+            try {
+                state.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private class ShortDomainUpdaterWorker implements Runnable {
+    public String getStateStats() {
+        if (state == null) {
+            return "incremental mode off";
+        }
+        return "state entries: " + state.size() + " unchanged zones skipped: " + state.getSkipped();
+    }
+
+    /**
+     * @return delegation queries sent but not yet compared
+     */
+    public int getPendingDelegationChecks() {
+        return pendingDelegationChecks.get();
+    }
 
-        private ConcurrentLinkedQueue<Long> domainIdQ;
-        private ConcurrentLinkedQueue<String> logFileQ;
-        private ConcurrentLinkedQueue<String> criticalLogFileQ;
-        private volatile boolean keepOnRunning = true;
-        private Connection cn = null;
+    public String getResolverStats() {
+        if (resolver instanceof ResolverCache) {
+            return ((ResolverCache) resolver).getStats() + " " + recursors.getStats();
+        }
+        return "dns cache disabled " + recursors.getStats();
+    }
 
-        private PreparedStatement getSOARecord = null;
-        private PreparedStatement getNameFromDomains = null;
-        private PreparedStatement getRecords = null;
-        private PreparedStatement insBroken = null;
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor(), the code is built for
+     * Java 8
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("executionMode=virtual needs Java 21 or newer, running on " + System.getProperty("java.version"), e);
+        }
+    }
+
+    /**
+     * executionMode=virtual: one virtual thread per zone. A virtual thread
+     * waits for JDBC and for its SOA answer without holding a platform
+     * thread, so the concurrency is bounded by the permits (zones in flight),
+     * the connection pools and the DNS window, not by a thread count.
+     *
+     * The parser and marker batch of a ShortDomainUpdaterWorker are pooled.
+     * A zone holds one only while it is read, checked or written, not while it
+     * waits for DNS. Connector/J 5.1 synchronizes inside JDBC calls, which
+     * pins the carrier thread for the duration of a query.
+     */
+    private class VirtualDispatcher implements Runnable {
+
+        private final ExecutorService executor;
+        private final AdjustableSemaphore permits;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final ConcurrentLinkedQueue<ShortDomainUpdaterWorker> idle = new ConcurrentLinkedQueue<>();
+        private final List<ShortDomainUpdaterWorker> all = new CopyOnWriteArrayList<>();
+
+        VirtualDispatcher(ExecutorService executor, int maxConcurrency) {
+            this.executor = executor;
+            this.permits = new AdjustableSemaphore(maxConcurrency);
+            metrics.gauge("zones_in_flight", () -> inFlight.get());
+        }
+
+        public void run() {
+            try {
+                while (keepOnRunning) {
+                    Zone zone = null;
+                    long domainId = LongRingBuffer.EMPTY;
+                    if (streaming) {
+                        zone = zoneQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        domainId = shortDomainQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    }
+                    if (zone == null && domainId == LongRingBuffer.EMPTY) {
+                        if (noMoreInput && zoneQ.isEmpty() && shortDomainQ.isDrained()) {
+                            break;
+                        }
+                        // idle, don't keep findings uncommitted
+                        commitIdle();
+                        continue;
+                    }
+                    permits.acquire();
+                    inFlight.incrementAndGet();
+                    final Zone z = zone;
+                    final long id = domainId;
+                    executor.execute(() -> {
+                        try {
+                            validate(z, id);
+                        } finally {
+                            inFlight.decrementAndGet();
+                            permits.release();
+                        }
+                    });
+                }
+                // wait for the zones in flight
+                while (inFlight.get() > 0) {
+                    Thread.sleep(idleWaitMillis);
+                }
+                for (ShortDomainUpdaterWorker ctx : all) {
+                    ctx.commit();
+                }
+            } catch (Exception e) {
+                criticalLogFileQ.add("Strange exception: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                executor.shutdown();
+                workersDone.countDown();
+            }
+        }
+
+        private void validate(Zone zone, long domainId) {
+            try {
+                ShortDomainUpdaterWorker ctx = borrow();
+                CompletableFuture<DelegationCheck> answer;
+                try {
+                    answer = ctx.startZone(zone, domainId);
+                } finally {
+                    idle.add(ctx);
+                }
+                if (answer == null) {
+                    return;
+                }
+                // blocks the virtual thread only, handle() never completes exceptionally
+                DelegationCheck dc = answer.join();
+                ctx = borrow();
+                try {
+                    ctx.processDelegation(dc);
+                } finally {
+                    idle.add(ctx);
+                }
+            } catch (Exception e) {
+                criticalLogFileQ.add("Strange exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        private ShortDomainUpdaterWorker borrow() throws Exception {
+            ShortDomainUpdaterWorker ctx = idle.poll();
+            if (ctx == null) {
+                ctx = new ShortDomainUpdaterWorker(-1, shortDomainQ, logFileQ, criticalLogFileQ);
+                all.add(ctx);
+            }
+            return ctx;
+        }
+
+        private void commitIdle() {
+            // only the ones not in use by a zone
+            List<ShortDomainUpdaterWorker> taken = new ArrayList<>();
+            ShortDomainUpdaterWorker ctx;
+            while ((ctx = idle.poll()) != null) {
+                taken.add(ctx);
+            }
+            for (ShortDomainUpdaterWorker t : taken) {
+                if (t.updatedDomains > 0) {
+                    t.commit();
+                }
+                idle.add(t);
+            }
+        }
+    }
+
+    /**
+     * executionMode=staged: the check of a zone is cut into stages, each with
+     * its own threads, connected by bounded queues:
+     *
+     * fetch (read the zone) -> resolve (SOA checks, send the delegation
+     * query) -> validate (compare the answer, read and parse the records) ->
+     * persist (marker batches, state) -> log (the LogQueue writer threads).
+     *
+     * DNS answers are not waited for by a thread, the resolve stage holds a
+     * permit per zone until the validate stage takes its answer, so at most
+     * stageResolveConcurrency zones are in the DNS or waiting to be
+     * validated. A full queue blocks the stage before it. Queue lengths and
+     * busy threads per stage are exported as gauges.
+     *
+     * Every stage thread has its own ShortDomainUpdaterWorker as context.
+     */
+    private class StagedPipeline {
+
+        private final BlockingQueue<Zone> resolveQ;
+        private final LinkedBlockingQueue<DelegationCheck> validateQ = new LinkedBlockingQueue<>();
+        private final BlockingQueue<DelegationCheck> persistQ;
+        private final AdjustableSemaphore dnsPermits;
+        private final Stage fetch;
+        private final Stage resolve;
+        private final Stage validate;
+        private final Stage persist;
+
+        StagedPipeline(int queueSize, int resolveConcurrency) {
+            this.resolveQ = new LinkedBlockingQueue<>(queueSize);
+            this.persistQ = new LinkedBlockingQueue<>(queueSize);
+            this.dnsPermits = new AdjustableSemaphore(resolveConcurrency);
+            metrics.gauge("stage_fetch_queue", () -> streaming ? zoneQ.size() : shortDomainQ.size());
+            metrics.gauge("stage_resolve_queue", () -> resolveQ.size());
+            metrics.gauge("stage_validate_queue", () -> validateQ.size());
+            metrics.gauge("stage_persist_queue", () -> persistQ.size());
+
+            fetch = new Stage("fetch") {
+                boolean step(ShortDomainUpdaterWorker ctx) throws Exception {
+                    Zone zone = null;
+                    long domainId = LongRingBuffer.EMPTY;
+                    if (streaming) {
+                        zone = zoneQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        domainId = shortDomainQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    }
+                    if (zone == null && domainId == LongRingBuffer.EMPTY) {
+                        return false;
+                    }
+                    busy.incrementAndGet();
+                    try {
+                        zone = ctx.fetchZone(zone, domainId);
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                    if (zone != null) {
+                        resolveQ.put(zone);
+                    }
+                    return true;
+                }
+
+                boolean drained() {
+                    return noMoreInput && zoneQ.isEmpty() && shortDomainQ.isDrained();
+                }
+            };
+
+            resolve = new Stage("resolve") {
+                boolean step(ShortDomainUpdaterWorker ctx) throws Exception {
+                    Zone zone = resolveQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    if (zone == null) {
+                        return false;
+                    }
+                    dnsPermits.acquire();
+                    busy.incrementAndGet();
+                    try {
+                        CompletableFuture<DelegationCheck> answer = ctx.resolveZone(zone);
+                        if (answer == null) {
+                            dnsPermits.release();
+                        } else {
+                            // unbounded, but never holds more than the permits
+                            answer.thenAccept(validateQ::add);
+                        }
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                    return true;
+                }
+
+                boolean drained() {
+                    return fetch.done && resolveQ.isEmpty();
+                }
+            };
+
+            validate = new Stage("validate") {
+                boolean step(ShortDomainUpdaterWorker ctx) throws Exception {
+                    DelegationCheck dc = validateQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    if (dc == null) {
+                        return false;
+                    }
+                    dnsPermits.release();
+                    busy.incrementAndGet();
+                    boolean verdict;
+                    try {
+                        verdict = ctx.validateDelegation(dc);
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                    if (verdict) {
+                        persistQ.put(dc);
+                    }
+                    return true;
+                }
+
+                boolean drained() {
+                    // pendingDelegationChecks drops once a zone is validated
+                    return resolve.done && pendingDelegationChecks.get() == 0 && validateQ.isEmpty();
+                }
+            };
+
+            persist = new Stage("persist") {
+                boolean step(ShortDomainUpdaterWorker ctx) throws Exception {
+                    DelegationCheck dc = persistQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    if (dc == null) {
+                        return false;
+                    }
+                    busy.incrementAndGet();
+                    try {
+                        ctx.persist(dc);
+                        ctx.commitIfFull(dc.zone);
+                    } finally {
+                        busy.decrementAndGet();
+                    }
+                    return true;
+                }
+
+                boolean drained() {
+                    return validate.done && persistQ.isEmpty();
+                }
+            };
+        }
+
+        Thread[] start() {
+            int[] threads = new int[]{DataBase.getStageFetchThreads(), DataBase.getStageResolveThreads(),
+                DataBase.getStageValidateThreads(), DataBase.getStagePersistThreads()};
+            Stage[] stages = new Stage[]{fetch, resolve, validate, persist};
+            int total = 0;
+            for (int n : threads) {
+                total += n;
+            }
+            workersDone = new CountDownLatch(total);
+            List<Thread> started = new ArrayList<>();
+            for (int i = 0; i < stages.length; i++) {
+                stages[i].live.set(threads[i]);
+                for (int t = 0; t < threads[i]; t++) {
+                    Thread th = new Thread(stages[i]);
+                    th.setName(stages[i].name + "-" + t);
+                    th.start();
+                    started.add(th);
+                }
+            }
+            return started.toArray(new Thread[0]);
+        }
+    }
+
+    /**
+     * One stage of the StagedPipeline, run by each of its threads. A stage
+     * is done when its last thread found the stage before it done and its
+     * queue empty.
+     */
+    private abstract class Stage implements Runnable {
+
+        final String name;
+        final AtomicInteger busy = new AtomicInteger();
+        final AtomicInteger live = new AtomicInteger();
+        volatile boolean done = false;
+
+        Stage(String name) {
+            this.name = name;
+            metrics.gauge("stage_" + name + "_busy", () -> busy.get());
+        }
+
+        /**
+         * @return false if nothing came within idleWaitMillis
+         */
+        abstract boolean step(ShortDomainUpdaterWorker ctx) throws Exception;
+
+        /**
+         * @return true if no more input will come
+         */
+        abstract boolean drained();
+
+        public void run() {
+            try {
+                ShortDomainUpdaterWorker ctx = new ShortDomainUpdaterWorker(-1, shortDomainQ, logFileQ, criticalLogFileQ);
+                while (keepOnRunning) {
+                    if (!step(ctx)) {
+                        if (drained()) {
+                            break;
+                        }
+                        if (ctx.updatedDomains > 0) {
+                            // idle, don't keep findings uncommitted
+                            ctx.commit();
+                        }
+                    }
+                }
+                ctx.commit();
+            } catch (Exception e) {
+                criticalLogFileQ.add("Strange exception: " + e.getMessage());
+                e.printStackTrace();
+            } finally {
+                if (live.decrementAndGet() == 0) {
+                    done = true;
+                }
+                workersDone.countDown();
+            }
+        }
+    }
+
+    private class ShortDomainUpdaterWorker implements Runnable {
+
+        private final int index;
+        private DomainIdSource domainIdQ;
+        private LogQueue logFileQ;
+        private LogQueue criticalLogFileQ;
+        private ConnectionPool readPool = null;
+        private BrokenMarkerWriter markers = null;
+        private RecordParser parser = null;
+        // one page of records of the zone being checked
+        private final List<Zone.Row> page = new ArrayList<>();
+        private final int recordPageSize = DataBase.getRecordPageSize();
 
         // jabber fix
         //private PreparedStatement delJabberRecords = null;
-        private SimpleResolver res = null;
 
         private int updatedDomains = 0;
         private final int batchSize = 1500;
 
-        private ShortDomainUpdaterWorker() {
-        }
-
-        public ShortDomainUpdaterWorker(ConcurrentLinkedQueue<Long> DomainIdQ,
-                ConcurrentLinkedQueue<String> logFileQ, ConcurrentLinkedQueue<String> criticalLogFileQ) throws Exception {
+        public ShortDomainUpdaterWorker(int index, DomainIdSource DomainIdQ,
+                LogQueue logFileQ, LogQueue criticalLogFileQ) throws Exception {
 
+            this.index = index;
             this.domainIdQ = DomainIdQ;
             this.logFileQ = logFileQ;
             this.criticalLogFileQ = criticalLogFileQ;
 
-            Class.forName(DataBase.getJdbcClass());
-            cn = DriverManager.getConnection(DataBase.getJdbcUrl(), DataBase.getDbUser(), DataBase.getDbPass());
-            cn.setAutoCommit(false);
-
-            getNameFromDomains = cn.prepareStatement("select name from domains where id=?");
-
-            getSOARecord = cn.prepareStatement("select name, content from records where domain_id=? and type='SOA'");
-
-            // check only zone apex for broken record
-            // to limit effort
-            getRecords = cn.prepareStatement("select r.id, r.name, r.ttl, r.type, r.prio, r.content "
-                    + "from records r "
-                    + "where r.domain_id = ? ");
-
+            // reads may go to a replica, domainmetadata is written to the primary
+            readPool = DataBase.getReadPool();
             //delJabberRecords = cn.prepareStatement("delete from records where domain_id=? and type = 'SRV' and content = ?");
-            insBroken = cn.prepareStatement("insert into domainmetadata(domain_id, kind, content) values (?, ?, ?)");
-
-            res = new SimpleResolver();
-            res.setAddress(InetAddress.getByName(DataBase.getRecursor()));
-            res.setTimeout(2);
+            if (findingsFile != null) {
+                markers = new BrokenMarkerWriter(findingsFile, DataBase.getMarkerBatchSize(), checkpoint);
+            } else {
+                markers = new BrokenMarkerWriter(DataBase.getWritePool(), DataBase.getMarkerBatchSize(), checkpoint);
+            }
+            markers.setState(state);
+            parser = new RecordParser(resolver, DataBase.getNameCacheSize());
         }
 
         public void run() {
             try {
                 while (keepOnRunning) {
-                    ResultSet rs = null;
-                    String zoneName = null;
-                    Long domainId = domainIdQ.poll();
-                    if (domainId != null) {
-                        updatedDomains++;
-                        try {
-                            getNameFromDomains.setLong(1, domainId);
-                            String domainName = "";
-                            ResultSet rsD = getNameFromDomains.executeQuery();
-                            if (rsD.first()) {
-                                domainName = rsD.getString(1);
-                            }
-                            rsD.close();
-                            logFileQ.add("checking domainId: " + domainId + " domainName: " + domainName);
-
-                            // cleanup old stuff anyway
-                            // jabber
-                            // das das jemals funktioniert hat. Da hätte NIE ein '.' am Ende sein dürfen.
-                            /*
-                            delJabberRecords.setLong(1, domainId);
-                            delJabberRecords.setString(2, "0 5269 gmx.net.");
-                            int i = delJabberRecords.executeUpdate();
-
-                            delJabberRecords.setLong(1, domainId);
-                            delJabberRecords.setString(2, "0 5222 gmx.net.");
-                            int j = delJabberRecords.executeUpdate();
-
-                            logFileQ.add("Jabber clean complete for " + domainName);
-                             */
-                            // Check SOA
-                            String[] soaStringFields = null;
-                            getSOARecord.setLong(1, domainId);
-                            rs = getSOARecord.executeQuery();
-                            if (rs.next()) {
-                                int numSOAs = 0;
-                                do {
-                                    zoneName = rs.getString(1);
-                                    if (!zoneName.equals(domainName)) {
-                                        setDomainIdBroken(insBroken, domainId, "SOA name does not match domainstable name");
-                                        criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " SOA name does not match domainstable name");
-                                        break;
-                                    }
-
-                                    String soaString = rs.getString(2);
-                                    soaStringFields = soaString.split(" ");
-
-                                    if (soaStringFields.length != 7) {
-                                        setDomainIdBroken(insBroken, domainId, "SOA invalid");
-                                        criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " SOA invalid");
-                                        break;
-                                    }
-                                    numSOAs++;
-                                } while (rs.next());
-                                if (numSOAs > 1) {
-                                    setDomainIdBroken(insBroken, domainId, "more than one SOA");
-                                    criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " more than one SOA");
-                                }
-                            } else {
-                                setDomainIdBroken(insBroken, domainId, "no SOA");
-                                criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " no SOA");
-                            }
-                            rs.close();
-
-                            logFileQ.add("SOA checking complete for " + domainName);
-
-                            // Check whether Domain is delegated
-                            // assume that if zone is delegated elsewhere it will not have
-                            // the SOA exactly like in our DB
-                            Lookup l = new Lookup(new Name(zoneName + "."), Type.SOA);
-                            l.setResolver(res);
-                            Record[] delegationCheckRecords = l.run();
-                            int rcLookup = l.getResult();
-
-                            if (rcLookup == Lookup.SUCCESSFUL) {
-                                // check if returned SOA matches database SOA
-                                // should check whats in
-                                // delegationCheckRecords
-                                for (Record rec : delegationCheckRecords) {
-                                    if (rec.getType() == Type.SOA) {
-                                        SOARecord soaRec = (SOARecord) rec;
-                                        // compare primary, contact and serial
-                                        if (soaStringFields[0].equals(soaRec.getHost().toString(true))
-                                                && soaStringFields[1].equals(soaRec.getAdmin().toString(true))
-                                                && (Long.parseLong(soaStringFields[2]) == soaRec.getSerial())) {
-                                            criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " IS delegated to us");
-
-                                            getRecords.setLong(1, domainId);
-                                            ResultSet rsZ = getRecords.executeQuery();
-
-                                            while (rsZ.next()) {
-                                                ResourceRecord r = new ResourceRecord(rsZ.getString(2), rsZ.getLong(3), rsZ.getString(4), rsZ.getInt(5), rsZ.getString(6), res);
-                                                if (r.getRc() != 0) {
-                                                    setDomainIdBroken(insBroken, domainId, r.getMessage());
-                                                    break;
-                                                }
-                                            }
-                                            rsZ.close();
-                                        } else {
-                                            criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " IS delegated but not to us");
-                                        }
-                                    }
-                                }
-                            } else { // rcLookup != Lookup.SUCCESSFUL
-                                criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " NOT delegated at all");
-                            }
-
-                            if (updatedDomains > batchSize) {
-                                cn.commit();
-                                updatedDomains = 0;
-                                logFileQ.add("domain_id: " + domainId + " " + zoneName + " commit send");
-                                Thread.sleep(100);
-                            }
-                        } catch (Exception e) {
-                            criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " exception: " + e.getMessage());
-                            e.printStackTrace();
+                    DelegationCheck dc = delegationQ.poll();
+                    if (dc != null) {
+                        processDelegation(dc);
+                        continue;
+                    }
+
+                    if (inputDrained()) {
+                        // nothing left to read, wait for the outstanding SOA answers
+                        if (pendingDelegationChecks.get() == 0) {
+                            break;
+                        }
+                        dc = delegationQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                        if (dc != null) {
+                            processDelegation(dc);
+                        }
+                        continue;
+                    }
+
+                    if (index >= activeWorkers) {
+                        // parked by the concurrency controller, answers are still processed
+                        dc = delegationQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                        if (dc != null) {
+                            processDelegation(dc);
+                        } else if (updatedDomains > 0) {
+                            commit();
                         }
+                        continue;
+                    }
+
+                    Zone zone = null;
+                    long domainId = LongRingBuffer.EMPTY;
+                    if (streaming) {
+                        zone = zoneQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
                     } else {
-                        try {
-                            cn.commit();
-                            updatedDomains = 0;
-                        } catch (Exception e) {
-                            criticalLogFileQ.add("domain_id: " + domainId + " commit exception: " + e.getMessage());
-                            System.out.println("domain_id: " + domainId + " commit exception: " + e.getMessage());
-                            e.printStackTrace();
+                        domainId = domainIdQ.poll(idleWaitMillis, TimeUnit.MILLISECONDS);
+                    }
+                    if (zone != null || domainId != LongRingBuffer.EMPTY) {
+                        CompletableFuture<DelegationCheck> answer = startZone(zone, domainId);
+                        if (answer != null) {
+                            // the answer is handled by whichever worker picks it from delegationQ
+                            answer.thenAccept(delegationQ::add);
                         }
+                    } else if (updatedDomains > 0) {
+                        // idle, don't keep findings uncommitted
+                        commit();
                     }
                 }
+                commit();
             } catch (Exception e) {
                 criticalLogFileQ.add("Strange exception: " + e.getMessage());
                 e.printStackTrace();
+            } finally {
+                workersDone.countDown();
+            }
+        }
+
+        /**
+         * load the zone if needed, check its SOA and send the delegation
+         * query
+         *
+         * @return completes with the SOA answer, null if there is nothing to
+         * wait for (unchanged or failed)
+         */
+        private CompletableFuture<DelegationCheck> startZone(Zone zone, long domainId) throws InterruptedException {
+            zone = fetchZone(zone, domainId);
+            if (zone == null) {
+                return null;
+            }
+            CompletableFuture<DelegationCheck> answer = resolveZone(zone);
+            commitIfFull(zone);
+            return answer;
+        }
+
+        /**
+         * @return the zone to check, null if it is unchanged or could not be
+         * read
+         */
+        private Zone fetchZone(Zone zone, long domainId) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                if (zone == null) {
+                    zone = loadZone(domainId);
+                }
+                zone.setStarted(start);
+                if (state != null && state.isCurrent(zone.getDomainId(), zone.fingerprint(), recheckAfterMillis)) {
+                    logFileQ.add("domain_id: " + zone.getDomainId() + " " + zone.getName() + " unchanged since last check, skipped");
+                    checkpoint.skipped(zone.getDomainId());
+                    metrics.count(Metrics.DOMAINS_CHECKED);
+                    return null;
+                }
+                return zone;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                criticalLogFileQ.add("domain_id: " + (zone != null ? zone.getDomainId() : domainId) + " exception: " + e.getMessage());
+                e.printStackTrace();
+                if (zone == null) {
+                    // could not be read, nothing to write
+                    checkpoint.skipped(domainId);
+                }
+                return null;
+            }
+        }
+
+        /**
+         * @return completes with the SOA answer, null if no query was sent
+         */
+        private CompletableFuture<DelegationCheck> resolveZone(Zone zone) {
+            try {
+                return checkZone(zone);
+            } catch (Exception e) {
+                criticalLogFileQ.add("domain_id: " + zone.getDomainId() + " exception: " + e.getMessage());
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        private void commitIfFull(Zone zone) throws InterruptedException {
+            if (updatedDomains > batchSize) {
+                commit();
+                logFileQ.add("domain_id: " + zone.getDomainId() + " " + zone.getName() + " commit send");
+                // back off while the primary is slow, fixed without the controller
+                long pause = controller != null ? controller.getCommitPauseMillis() : 100;
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+        }
+
+        private boolean inputDrained() {
+            return noMoreInput && zoneQ.isEmpty() && shortDomainQ.isDrained();
+        }
+
+        private void processDelegation(DelegationCheck dc) {
+            if (validateDelegation(dc)) {
+                persist(dc);
+            }
+        }
+
+        /**
+         * compare the SOA answer and check the records if the zone is
+         * delegated to us
+         *
+         * @return false if interrupted, the zone has no verdict then
+         */
+        private boolean validateDelegation(DelegationCheck dc) {
+            try {
+                checkDelegation(dc);
+                metrics.count(Metrics.DOMAINS_CHECKED);
+                return true;
+            } catch (CancellationException e) {
+                // shutting down, a resumed run checks the zone again
+                logFileQ.add("domain_id: " + dc.zone.getDomainId() + " " + dc.zoneName + " interrupted, no verdict");
+                return false;
+            } catch (Exception e) {
+                criticalLogFileQ.add("domain_id: " + dc.zone.getDomainId() + " " + dc.zoneName + " exception: " + e.getMessage());
+                e.printStackTrace();
+                metrics.count(Metrics.DOMAINS_CHECKED);
+                return true;
+            } finally {
+                // the zone is done with
+                pendingDelegationChecks.decrementAndGet();
+            }
+        }
+
+        /**
+         * queue the verdict for the next marker batch
+         */
+        private void persist(DelegationCheck dc) {
+            // counts the marker rows queued since the last commit
+            updatedDomains++;
+            try {
+                // unless the records were checked the old findings can't be confirmed or cleared
+                checkpoint.finished(dc.zone.getDomainId(), dc.zone.getFindings(), dc.conclusive);
+                // in incremental runs the writer records the verdict in the state after the commit
+                boolean full = state != null
+                        ? markers.add(dc.zone.getDomainId(), dc.zone.getFindings(), dc.conclusive, dc.zone.fingerprint())
+                        : markers.add(dc.zone.getDomainId(), dc.zone.getFindings(), dc.conclusive);
+                if (full) {
+                    markers.flush();
+                }
+                metrics.stage(Metrics.DOMAIN_TOTAL).recordSince(dc.zone.getStarted());
+            } catch (Exception e) {
+                criticalLogFileQ.add("domain_id: " + dc.zone.getDomainId() + " " + dc.zoneName + " writing broken markers failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        private void commit() {
+            try {
+                // the marker writer commits each batch
+                markers.flush();
+                if (state != null) {
+                    state.flush();
+                }
+                updatedDomains = 0;
+            } catch (Exception e) {
+                criticalLogFileQ.add("commit exception: " + e.getMessage());
+                System.out.println("commit exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * name and SOA rows only (and the apex NS rows for the parent
+         * delegation check), the other records are read when the zone turns
+         * out to be delegated to us. Incremental mode needs all records for
+         * the fingerprint.
+         */
+        private Zone loadZone(long domainId) throws Exception {
+            long start = System.nanoTime();
+            ConnectionPool.PooledConnection pc = readPool.borrow();
+            try {
+                PreparedStatement getNameFromDomains = pc.prepare("select name from domains where id=?");
+                getNameFromDomains.setLong(1, domainId);
+                String domainName = "";
+                ResultSet rsD = getNameFromDomains.executeQuery();
+                if (rsD.first()) {
+                    domainName = rsD.getString(1);
+                }
+                rsD.close();
+
+                Zone zone = new Zone(domainId, domainName);
+                if (state != null) {
+                    readRecords(pc, zone);
+                    return zone;
+                }
+                PreparedStatement getSOARecord = pc.prepare("select name, content from records where domain_id=? and type='SOA'");
+                getSOARecord.setLong(1, domainId);
+                ResultSet rs = getSOARecord.executeQuery();
+                while (rs.next()) {
+                    zone.addSOA(new Zone.Row(0, rs.getString(1), 0, "SOA", 0, rs.getString(2)));
+                }
+                rs.close();
+                if (delegations != null) {
+                    PreparedStatement getNSRecords = pc.prepare("select name, content from records where name=? and type='NS' and domain_id=?");
+                    getNSRecords.setString(1, domainName);
+                    getNSRecords.setLong(2, domainId);
+                    rs = getNSRecords.executeQuery();
+                    while (rs.next()) {
+                        zone.addNS(new Zone.Row(0, rs.getString(1), 0, "NS", 0, rs.getString(2)));
+                    }
+                    rs.close();
+                }
+                return zone;
+            } catch (SQLException e) {
+                pc.invalidate();
+                throw e;
+            } finally {
+                pc.release();
+                metrics.stage(Metrics.DOMAIN_FETCH).recordSince(start);
+            }
+        }
+
+        /**
+         * All records for the fingerprint, a page at a time. A zone larger
+         * than one page is only fingerprinted, checkRecords() reads it again.
+         */
+        private void readRecords(ConnectionPool.PooledConnection pc, Zone zone) throws SQLException {
+            long afterId = 0;
+            while (true) {
+                List<Zone.Row> rows = readRecordPage(pc, zone.getDomainId(), afterId);
+                for (Zone.Row row : rows) {
+                    zone.addRecord(row);
+                }
+                if (rows.size() < recordPageSize) {
+                    break;
+                }
+                zone.dropRecords();
+                afterId = rows.get(rows.size() - 1).getId();
+            }
+            zone.setNoRecords();
+        }
+
+        /**
+         * Keyset page of up to recordPageSize records with an id above
+         * afterId. The rows are in the worker's page buffer, valid until the
+         * next call.
+         */
+        private List<Zone.Row> readRecordPage(ConnectionPool.PooledConnection pc, long domainId, long afterId) throws SQLException {
+            long start = System.nanoTime();
+            PreparedStatement getRecords = pc.prepare("select r.id, r.name, r.ttl, r.type, r.prio, r.content "
+                    + "from records r "
+                    + "where r.domain_id = ? and r.id > ? "
+                    + "order by r.id limit ?");
+            getRecords.setLong(1, domainId);
+            getRecords.setLong(2, afterId);
+            getRecords.setInt(3, recordPageSize);
+            page.clear();
+            ResultSet rsZ = getRecords.executeQuery();
+            while (rsZ.next()) {
+                page.add(new Zone.Row(rsZ.getLong(1), rsZ.getString(2), rsZ.getLong(3), rsZ.getString(4), rsZ.getInt(5), rsZ.getString(6)));
+            }
+            rsZ.close();
+            metrics.stage(Metrics.RECORD_FETCH).recordSince(start);
+            return page;
+        }
+
+        private CompletableFuture<DelegationCheck> checkZone(Zone zone) throws Exception {
+            long domainId = zone.getDomainId();
+            String domainName = zone.getName();
+            String zoneName = null;
+            logFileQ.add("checking domainId: " + domainId + " domainName: " + domainName);
+
+            // cleanup old stuff anyway
+            // jabber
+            // das das jemals funktioniert hat. Da hätte NIE ein '.' am Ende sein dürfen.
+            /*
+            delJabberRecords.setLong(1, domainId);
+            delJabberRecords.setString(2, "0 5269 gmx.net.");
+            int i = delJabberRecords.executeUpdate();
+
+            delJabberRecords.setLong(1, domainId);
+            delJabberRecords.setString(2, "0 5222 gmx.net.");
+            int j = delJabberRecords.executeUpdate();
+
+            logFileQ.add("Jabber clean complete for " + domainName);
+             */
+            // Check SOA
+            String soaString = null;
+            if (!zone.getSOARows().isEmpty()) {
+                int numSOAs = 0;
+                for (Zone.Row soa : zone.getSOARows()) {
+                    zoneName = soa.getName();
+                    if (!zoneName.equals(domainName)) {
+                        setDomainIdBroken(zone, "SOA name does not match domainstable name");
+                        criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " SOA name does not match domainstable name");
+                        break;
+                    }
+
+                    soaString = soa.getContent();
+
+                    if (parser.fieldCount(soaString) != 7) {
+                        setDomainIdBroken(zone, "SOA invalid");
+                        criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " SOA invalid");
+                        break;
+                    }
+                    numSOAs++;
+                }
+                if (numSOAs > 1) {
+                    setDomainIdBroken(zone, "more than one SOA");
+                    criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " more than one SOA");
+                }
+            } else {
+                setDomainIdBroken(zone, "no SOA");
+                criticalLogFileQ.add("domain_id: " + domainId + " " + zoneName + " no SOA");
+            }
+
+            logFileQ.add("SOA checking complete for " + domainName);
+
+            // Check whether Domain is delegated
+            // assume that if zone is delegated elsewhere it will not have
+            // the SOA exactly like in our DB
+            final DelegationCheck check = new DelegationCheck(zone, zoneName, soaString);
+            Name soaName;
+            try {
+                soaName = new Name(zoneName + ".");
+            } catch (Exception e) {
+                // no delegation check, keep the SOA findings anyway
+                checkpoint.finished(domainId, zone.getFindings(), false);
+                markers.add(domainId, zone.getFindings(), false);
+                throw e;
+            }
+            pendingDelegationChecks.incrementAndGet();
+            final long sent = System.nanoTime();
+            CompletableFuture<Message> query = delegations != null ? delegations.queryDelegation(soaName) : resolver.query(soaName, Type.SOA);
+            return query.handle((response, e) -> {
+                metrics.stage(Metrics.SOA_QUERY).recordSince(sent);
+                check.response = response;
+                check.error = e;
+                return check;
+            });
+        }
+
+        private void checkDelegation(DelegationCheck dc) throws Exception {
+            long domainId = dc.zone.getDomainId();
+            if (dc.error != null || dc.response.getRcode() != Rcode.NOERROR) {
+                criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " NOT delegated at all");
+                return;
+            }
+            if (delegations != null) {
+                checkParentDelegation(dc);
+                return;
+            }
+
+            boolean soaSeen = false;
+            for (Record rec : dc.response.getSectionArray(Section.ANSWER)) {
+                if (rec.getType() == Type.SOA) {
+                    soaSeen = true;
+                    SOARecord soaRec = (SOARecord) rec;
+                    if (dc.soaString == null || parser.fieldCount(dc.soaString) != 7) {
+                        criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " SOA in DB unusable, delegation not compared");
+                        break;
+                    }
+                    // compare primary, contact and serial
+                    if (parser.soaMatches(dc.soaString, soaRec)) {
+                        criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " IS delegated to us");
+                        checkRecords(dc.zone);
+                        dc.conclusive = true;
+                    } else {
+                        criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " IS delegated but not to us");
+                    }
+                }
+            }
+            if (!soaSeen) {
+                criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " NOT delegated at all");
             }
         }
+
+        /**
+         * The zone is delegated to us if the parent's NS set and the apex NS
+         * rows in the DB have a server in common.
+         */
+        private void checkParentDelegation(DelegationCheck dc) throws Exception {
+            long domainId = dc.zone.getDomainId();
+            Set<Name> delegated = DelegationResolver.delegatedTo(dc.response, new Name(dc.zoneName + "."));
+            if (delegated.isEmpty()) {
+                criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " NOT delegated at all");
+                return;
+            }
+            if (dc.zone.getNSRows().isEmpty()) {
+                criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " no NS in DB, delegation not compared");
+                return;
+            }
+            for (Zone.Row ns : dc.zone.getNSRows()) {
+                Name server;
+                try {
+                    server = Name.fromString(ns.getContent(), Name.root);
+                } catch (Exception e) {
+                    continue;
+                }
+                if (delegated.contains(server)) {
+                    criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " IS delegated to us");
+                    checkRecords(dc.zone);
+                    dc.conclusive = true;
+                    return;
+                }
+            }
+            criticalLogFileQ.add("domain_id: " + domainId + " " + dc.zoneName + " IS delegated but not to us");
+        }
+
+        private void checkRecords(Zone zone) throws Exception {
+            if (zone.hasRecords()) {
+                String invalid = firstInvalid(zone.getRecords());
+                if (invalid != null) {
+                    setDomainIdBroken(zone, invalid);
+                }
+                return;
+            }
+
+            // not loaded or too large to keep: one page in memory at a time
+            if (zone.isDropped()) {
+                metrics.count("zones_paged");
+            }
+            long afterId = 0;
+            while (true) {
+                List<Zone.Row> rows;
+                ConnectionPool.PooledConnection pc = readPool.borrow();
+                try {
+                    rows = readRecordPage(pc, zone.getDomainId(), afterId);
+                } catch (SQLException e) {
+                    pc.invalidate();
+                    throw e;
+                } finally {
+                    pc.release();
+                }
+                String invalid = firstInvalid(rows);
+                if (invalid != null) {
+                    setDomainIdBroken(zone, invalid);
+                    return;
+                }
+                if (rows.size() < recordPageSize) {
+                    return;
+                }
+                afterId = rows.get(rows.size() - 1).getId();
+            }
+        }
+
+        /**
+         * @return the message of the first invalid row, null if all are valid
+         */
+        private String firstInvalid(List<Zone.Row> rows) {
+            if (largeZoneChecker != null && rows.size() >= DataBase.getLargeZoneRecords()) {
+                // the same verdict as the loop below: the first invalid row
+                String invalid = largeZoneChecker.firstInvalid(rows);
+                if (invalid != null) {
+                    metrics.count(Metrics.RECORDS_INVALID);
+                }
+                return invalid;
+            }
+
+            LatencyHistogram parseTime = metrics.stage(Metrics.RECORD_PARSE);
+            for (Zone.Row row : rows) {
+                long start = System.nanoTime();
+                ResourceRecord r = parser.parse(row.getName(), row.getTtl(), row.getType(), row.getPrio(), row.getContent());
+                parseTime.recordSince(start);
+                metrics.count(Metrics.RECORDS_PARSED);
+                if (r.getRc() != 0) {
+                    metrics.count(Metrics.RECORDS_INVALID);
+                    return r.getMessage();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class DelegationCheck {
+
+        private final Zone zone;
+        private final String zoneName;
+        private final String soaString;
+        private volatile Message response;
+        private volatile Throwable error;
+        // NOERROR, delegated to us and the records were checked: old findings may be cleared
+        private volatile boolean conclusive = false;
+
+        DelegationCheck(Zone zone, String zoneName, String soaString) {
+            this.zone = zone;
+            this.zoneName = zoneName;
+            this.soaString = soaString;
+        }
     }
 
     public String join(String r[], String d) {
@@ -270,17 +1179,9 @@ public class DomainUpdater {
         }
     }
 
-    private void setDomainIdBroken(PreparedStatement insBroken, long domainId, String reason) {
-        try {
-            insBroken.setLong(1, domainId);
-            insBroken.setString(2, "broken");
-            insBroken.setString(3, reason);
-            insBroken.execute();
-            System.out.println("domainId: " + domainId + " marked as broken " + reason);
-        } catch (Exception e) {
-            System.out.println("domainId: " + domainId + " should be marked as broken " + reason);
-            e.printStackTrace();
-        }
+    private void setDomainIdBroken(Zone zone, String reason) {
+        // written in batches by the worker's BrokenMarkerWriter
+        zone.addFinding(reason);
     }
 
     private void setDomainIdBroken(PreparedStatement insBroken, long domainId) {
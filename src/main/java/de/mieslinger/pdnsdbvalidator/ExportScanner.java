@@ -0,0 +1,186 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * scanMode=offline: reads the domains and records tables from export files
+ * instead of the DB and queues complete Zones like ZoneScanner.
+ *
+ * Both files are read once, front to back, as a merge join: the domains
+ * export must be ordered by id, the records export by domain_id. Records of
+ * domains not in the domains export are skipped.
+ *
+ * Columns are given as a comma separated list in table order. A first row
+ * starting with a non numeric field (mysql -B) is taken as the column names.
+ * With mysqlBatch a bare NULL field is read as NULL, as mysql -B writes it.
+ *
+ * @author mieslingert
+ */
+public class ExportScanner {
+
+    private BlockingQueue<Zone> zoneQ;
+    private LogQueue logFileQ;
+    private String domainsFile;
+    private String recordsFile;
+    private String domainColumns;
+    private String recordColumns;
+    private int chunkSize;
+    private boolean mysqlBatch;
+    private Checkpoint checkpoint;
+    private long startAfter;
+
+    private TsvReader records;
+    private boolean haveRecord;
+    private long recordDomainId;
+    private long orphans = 0;
+    // column positions in the records export
+    private int rId, rDomainId, rName, rType, rContent, rTtl, rPrio;
+
+    private ExportScanner() {
+    }
+
+    public ExportScanner(BlockingQueue<Zone> zoneQ, LogQueue logFileQ, String domainsFile, String recordsFile,
+            String domainColumns, String recordColumns, int chunkSize, boolean mysqlBatch, Checkpoint checkpoint, long startAfter) {
+        this.zoneQ = zoneQ;
+        this.logFileQ = logFileQ;
+        this.domainsFile = domainsFile;
+        this.recordsFile = recordsFile;
+        this.domainColumns = domainColumns;
+        this.recordColumns = recordColumns;
+        this.chunkSize = chunkSize;
+        this.mysqlBatch = mysqlBatch;
+        this.checkpoint = checkpoint;
+        this.startAfter = startAfter;
+    }
+
+    /**
+     * @return number of zones queued
+     */
+    public long scan() throws Exception {
+        long zones = 0;
+        TsvReader domains = new TsvReader(domainsFile, chunkSize, mysqlBatch);
+        records = new TsvReader(recordsFile, chunkSize, mysqlBatch);
+        try {
+            boolean haveDomain = domains.next();
+            List<String> dCols = columns(domains, domainColumns);
+            if (haveDomain && !isNumeric(domains.getString(0))) {
+                haveDomain = domains.next();
+            }
+            int dId = index(dCols, "id", domainsFile);
+            int dName = index(dCols, "name", domainsFile);
+
+            haveRecord = records.next();
+            List<String> rCols = columns(records, recordColumns);
+            if (haveRecord && !isNumeric(records.getString(0))) {
+                haveRecord = records.next();
+            }
+            rId = index(rCols, "id", recordsFile);
+            rDomainId = index(rCols, "domain_id", recordsFile);
+            rName = index(rCols, "name", recordsFile);
+            rType = index(rCols, "type", recordsFile);
+            rContent = index(rCols, "content", recordsFile);
+            rTtl = index(rCols, "ttl", recordsFile);
+            rPrio = index(rCols, "prio", recordsFile);
+            recordDomainId = haveRecord ? records.getLong(rDomainId) : 0;
+
+            long lastId = Long.MIN_VALUE;
+            for (; haveDomain; haveDomain = domains.next()) {
+                long domainId = domains.getLong(dId);
+                if (domainId <= lastId) {
+                    throw new IOException(domainsFile + " line " + domains.getLine() + ": not ordered by id");
+                }
+                lastId = domainId;
+                while (haveRecord && recordDomainId < domainId) {
+                    orphans++;
+                    nextRecord();
+                }
+                if (domainId <= startAfter) {
+                    // checked before --resume, only skip its records
+                    while (haveRecord && recordDomainId == domainId) {
+                        nextRecord();
+                    }
+                    continue;
+                }
+                Zone zone = new Zone(domainId, domains.getString(dName));
+                while (haveRecord && recordDomainId == domainId) {
+                    zone.addRecord(new Zone.Row(records.getLong(rId), records.getString(rName), records.getLong(rTtl),
+                            records.getString(rType), (int) records.getLong(rPrio), records.getString(rContent)));
+                    nextRecord();
+                }
+                zone.setNoRecords();
+                checkpoint.dispatched(domainId);
+                zoneQ.put(zone);
+                zones++;
+                if (zones % 100000 == 0) {
+                    logFileQ.add("read " + zones + " zones from " + domainsFile + ", up to domain_id " + domainId);
+                }
+            }
+            while (haveRecord) {
+                orphans++;
+                nextRecord();
+            }
+            if (orphans > 0) {
+                logFileQ.add(orphans + " records without a domain in " + domainsFile + " skipped");
+            }
+        } finally {
+            domains.close();
+            records.close();
+        }
+        return zones;
+    }
+
+    private void nextRecord() throws IOException {
+        haveRecord = records.next();
+        if (haveRecord) {
+            long domainId = records.getLong(rDomainId);
+            if (domainId < recordDomainId) {
+                throw new IOException(recordsFile + " line " + records.getLine() + ": not ordered by domain_id");
+            }
+            recordDomainId = domainId;
+        }
+    }
+
+    public long getOrphans() {
+        return orphans;
+    }
+
+    /**
+     * the header row if the reader is on one, else the configured list
+     */
+    private static List<String> columns(TsvReader reader, String configured) {
+        if (reader.getLine() == 1 && !isNumeric(reader.getString(0))) {
+            String[] names = new String[reader.getFieldCount()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = reader.getString(i);
+            }
+            return Arrays.asList(names);
+        }
+        return Arrays.asList(configured.split("\\s*,\\s*"));
+    }
+
+    private static int index(List<String> columns, String name, String file) throws IOException {
+        int i = columns.indexOf(name);
+        if (i < 0) {
+            throw new IOException(file + ": no column " + name + " in " + columns);
+        }
+        return i;
+    }
+
+    private static boolean isNumeric(String s) {
+        if (s == null || s.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (!Character.isDigit(s.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * The findings of an offline run, one domainmetadata row per line in the
+ * format of LOAD DATA INFILE: domain_id, kind ('broken') and content,
+ * separated by tabs, backslash escaped.
+ *
+ * Shared by all workers.
+ *
+ * @author mieslingert
+ */
+public class FindingsFile implements Closeable {
+
+    private final Writer out;
+    private long rows = 0;
+
+    /**
+     * @param append keep the findings of a previous run (--resume)
+     */
+    public FindingsFile(String path, boolean append) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, append), StandardCharsets.UTF_8), 65536);
+    }
+
+    public synchronized void write(long domainId, List<String> findings) throws IOException {
+        for (String reason : findings) {
+            out.write(Long.toString(domainId));
+            out.write("\tbroken\t");
+            escape(reason);
+            out.write('\n');
+            rows++;
+        }
+    }
+
+    private void escape(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case 0:
+                    out.write("\\0");
+                    break;
+                default:
+                    out.write(c);
+            }
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized long getRows() {
+        return rows;
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+}
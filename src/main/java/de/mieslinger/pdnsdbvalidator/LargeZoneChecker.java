@@ -0,0 +1,97 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the records of a large zone in parallel on a ForkJoinPool, so one
+ * zone with tens of thousands of records (and a TXT lookup each) does not
+ * keep a single worker busy while the others are idle.
+ *
+ * The rows are split in halves down to chunk rows. Each pool thread has its
+ * own RecordParser. The verdict is the same as checking the rows in order:
+ * the message of the first invalid row. Rows behind an invalid row found by
+ * another task are skipped.
+ *
+ * @author mieslingert
+ */
+public class LargeZoneChecker {
+
+    private final ForkJoinPool pool;
+    private final ThreadLocal<RecordParser> parsers;
+    private final int chunk;
+    private final Metrics metrics;
+
+    public LargeZoneChecker(DnsClient resolver, int nameCacheSize, int parallelism, int chunk, Metrics metrics) {
+        // TXT lookups block in CompletableFuture.get(), which lets the pool compensate
+        this.pool = new ForkJoinPool(parallelism);
+        this.parsers = ThreadLocal.withInitial(() -> new RecordParser(resolver, nameCacheSize));
+        this.chunk = chunk;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the message of the first invalid row, null if all are valid
+     */
+    public String firstInvalid(List<Zone.Row> rows) {
+        metrics.count("large_zones_split");
+        return pool.invoke(new Check(rows, 0, rows.size(), new AtomicInteger(Integer.MAX_VALUE)));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * rows [from, to)
+     */
+    private class Check extends RecursiveTask<String> {
+
+        private final List<Zone.Row> rows;
+        private final int from;
+        private final int to;
+        // lowest invalid row index seen so far
+        private final AtomicInteger firstInvalid;
+
+        Check(List<Zone.Row> rows, int from, int to, AtomicInteger firstInvalid) {
+            this.rows = rows;
+            this.from = from;
+            this.to = to;
+            this.firstInvalid = firstInvalid;
+        }
+
+        @Override
+        protected String compute() {
+            if (to - from > chunk) {
+                int mid = (from + to) >>> 1;
+                Check upper = new Check(rows, mid, to, firstInvalid);
+                upper.fork();
+                String lower = new Check(rows, from, mid, firstInvalid).compute();
+                String higher = upper.join();
+                // an invalid row in the lower half comes first
+                return lower != null ? lower : higher;
+            }
+            RecordParser p = parsers.get();
+            LatencyHistogram parseTime = metrics.stage(Metrics.RECORD_PARSE);
+            for (int i = from; i < to && i < firstInvalid.get(); i++) {
+                Zone.Row row = rows.get(i);
+                long start = System.nanoTime();
+                ResourceRecord r = p.parse(row.getName(), row.getTtl(), row.getType(), row.getPrio(), row.getContent());
+                parseTime.recordSince(start);
+                metrics.count(Metrics.RECORDS_PARSED);
+                if (r.getRc() != 0) {
+                    int seen;
+                    while (i < (seen = firstInvalid.get()) && !firstInvalid.compareAndSet(seen, i)) {
+                    }
+                    return r.getMessage();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in microseconds with log-linear buckets like
+ * HdrHistogram: values below 32 are exact, above that every power of two is
+ * split in 16 buckets, so a percentile is off by less than 7%. Covers up to
+ * about 12 days. Recording is lock free.
+ *
+ * @author mieslingert
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 32;
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_EXP = 40;
+    private static final int BUCKETS = LINEAR + (MAX_EXP - 4) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        max.accumulate(micros);
+    }
+
+    /**
+     * record the time since startNanos (System.nanoTime())
+     */
+    public void recordSince(long startNanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumMicros() {
+        return sum.sum();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * @return copy of the bucket counts for percentile()
+     */
+    public long[] snapshot() {
+        long[] snap = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snap[i] = counts.get(i);
+        }
+        return snap;
+    }
+
+    public long percentile(double p) {
+        return percentile(snapshot(), p);
+    }
+
+    /**
+     * @param p 0..100
+     * @return the middle of the bucket holding the percentile, 0 if empty
+     */
+    public static long percentile(long[] snap, double p) {
+        long total = 0;
+        for (long c : snap) {
+            total += c;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < snap.length; i++) {
+            seen += snap[i];
+            if (seen >= rank) {
+                return lowest(i) + (width(i) - 1) / 2;
+            }
+        }
+        return lowest(snap.length - 1);
+    }
+
+    static int index(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        if (exp >= MAX_EXP) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (v >>> (exp - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (exp - 5) * SUB + sub;
+    }
+
+    static long lowest(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exp = (index - LINEAR) / SUB + 5;
+        int sub = (index - LINEAR) % SUB;
+        return (1L << exp) + ((long) sub << (exp - SUB_BITS));
+    }
+
+    private static long width(int index) {
+        if (index < LINEAR) {
+            return 1;
+        }
+        int exp = (index - LINEAR) / SUB + 5;
+        return 1L << (exp - SUB_BITS);
+    }
+}
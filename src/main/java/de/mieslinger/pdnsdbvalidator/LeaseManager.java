@@ -0,0 +1,379 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.lang.management.ManagementFactory;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares a sweep between several validator instances through the table
+ * validator_leases on the primary.
+ *
+ * The domain_id space is cut into ranges of rangeSize ids, one row per range
+ * and sweep. An instance claims the lowest range that is not done and either
+ * unowned or whose lease expired (the owner died), so dead instances' ranges
+ * are stolen. Leases are extended every ttl/3 by a heartbeat; a lease whose
+ * row got a new owner is lost and no longer dispatched.
+ *
+ * Every claim has its own owner value. Findings are only written while the
+ * writing transaction holds the lease row (select ... for update on owner),
+ * which also keeps a stealer's claim waiting until the write is committed,
+ * so two instances never write verdicts for the same range.
+ *
+ * A range is done once all its domains are committed or skipped.
+ *
+ * @author mieslingert
+ */
+public class LeaseManager implements Runnable {
+
+    private final ConnectionPool pool;
+    private final String sweep;
+    private final long rangeSize;
+    private final int ttlSeconds;
+    private final String instance;
+    private long claims = 0;
+    private volatile boolean keepOnRunning = true;
+    // by range start
+    private final Map<Long, Lease> held = new ConcurrentHashMap<>();
+
+    public LeaseManager(ConnectionPool pool, String sweep, long rangeSize, int ttlSeconds) {
+        this.pool = pool;
+        this.sweep = sweep;
+        this.rangeSize = rangeSize;
+        this.ttlSeconds = ttlSeconds;
+        // pid@host plus a random part, pids are reused
+        this.instance = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    /**
+     * create the table and the ranges of this sweep up to the highest
+     * domain_id, every instance does this at start
+     */
+    public void createRanges() throws SQLException {
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            Statement st = pc.getConnection().createStatement();
+            st.execute("create table if not exists validator_leases ("
+                    + "sweep varchar(64) not null, "
+                    + "range_start bigint not null, "
+                    + "range_end bigint not null, "
+                    + "owner varchar(128) default null, "
+                    + "expires_at datetime default null, "
+                    + "done tinyint not null default 0, "
+                    + "primary key (sweep, range_start), "
+                    + "key (sweep, done))");
+            ResultSet rs = st.executeQuery("select max(id) from domains");
+            long maxId = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            st.close();
+
+            PreparedStatement ins = pc.prepare("insert ignore into validator_leases (sweep, range_start, range_end) values (?, ?, ?)");
+            int batch = 0;
+            for (long start = 0; start < maxId; start += rangeSize) {
+                ins.setString(1, sweep);
+                ins.setLong(2, start);
+                ins.setLong(3, start + rangeSize);
+                ins.addBatch();
+                if (++batch % 1000 == 0) {
+                    ins.executeBatch();
+                }
+            }
+            ins.executeBatch();
+            pc.getConnection().commit();
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+
+    /**
+     * @return the lowest free or expired range, null if there is none right
+     * now
+     */
+    public synchronized Lease claim() throws SQLException {
+        String owner = instance + "#" + (++claims);
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement upd = pc.prepare("update validator_leases set owner=?, expires_at=timestampadd(second, ?, now()) "
+                    + "where sweep=? and done=0 and (owner is null or expires_at < now()) "
+                    + "order by range_start limit 1");
+            upd.setString(1, owner);
+            upd.setInt(2, ttlSeconds);
+            upd.setString(3, sweep);
+            int claimed = upd.executeUpdate();
+            Lease lease = null;
+            if (claimed == 1) {
+                PreparedStatement get = pc.prepare("select range_start, range_end from validator_leases where sweep=? and owner=?");
+                get.setString(1, sweep);
+                get.setString(2, owner);
+                ResultSet rs = get.executeQuery();
+                if (rs.next()) {
+                    lease = new Lease(rs.getLong(1), rs.getLong(2), owner);
+                }
+                rs.close();
+            }
+            pc.getConnection().commit();
+            if (lease != null) {
+                held.put(lease.start, lease);
+                Metrics.get().count("leases_claimed");
+            }
+            return lease;
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+
+    /**
+     * @return ranges not done and not held by this instance, they may still
+     * be stolen when their owner dies
+     */
+    public long getOthersOpen() throws SQLException {
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement st = pc.prepare("select count(*) from validator_leases where sweep=? and done=0 "
+                    + "and (owner is null or owner not like ?)");
+            st.setString(1, sweep);
+            st.setString(2, instance + "#%");
+            ResultSet rs = st.executeQuery();
+            long open = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            pc.getConnection().commit();
+            return open;
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * the domain is queued for checking
+     */
+    public void dispatched(Lease lease) {
+        synchronized (lease) {
+            lease.outstanding++;
+        }
+    }
+
+    /**
+     * all domains of the range are queued
+     */
+    public void closed(Lease lease) {
+        boolean done;
+        synchronized (lease) {
+            lease.closed = true;
+            done = lease.outstanding == 0;
+        }
+        if (done) {
+            markDone(lease);
+        }
+    }
+
+    /**
+     * the domains are committed or skipped
+     */
+    public void done(Collection<Long> domainIds) {
+        for (Long domainId : domainIds) {
+            Lease lease = held.get(rangeStart(domainId));
+            if (lease == null) {
+                continue;
+            }
+            boolean done;
+            synchronized (lease) {
+                done = --lease.outstanding == 0 && lease.closed;
+            }
+            if (done) {
+                markDone(lease);
+            }
+        }
+    }
+
+    private void markDone(Lease lease) {
+        held.remove(lease.start);
+        if (lease.lost) {
+            return;
+        }
+        try {
+            ConnectionPool.PooledConnection pc = pool.borrow();
+            try {
+                PreparedStatement st = pc.prepare("update validator_leases set done=1 where sweep=? and range_start=? and owner=?");
+                st.setString(1, sweep);
+                st.setLong(2, lease.start);
+                st.setString(3, lease.owner);
+                st.executeUpdate();
+                pc.getConnection().commit();
+                Metrics.get().count("leases_done");
+            } catch (SQLException e) {
+                pc.invalidate();
+                throw e;
+            } finally {
+                pc.release();
+            }
+        } catch (SQLException e) {
+            // expires and gets checked again by someone
+            System.out.println("lease " + lease.start + " not marked done: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Locks the lease rows of the domains in the caller's transaction until it
+     * commits. Rows are locked in ascending range_start order, so two writers
+     * fencing overlapping ranges can't deadlock.
+     *
+     * @return the domain ids whose lease is still held
+     */
+    public Set<Long> fence(ConnectionPool.PooledConnection pc, Collection<Long> domainIds) throws SQLException {
+        Set<Long> starts = new TreeSet<>();
+        for (Long domainId : domainIds) {
+            starts.add(rangeStart(domainId));
+        }
+        PreparedStatement st = pc.prepare("select 1 from validator_leases where sweep=? and range_start=? and owner=? for update");
+        Set<Long> valid = new HashSet<>();
+        for (Long start : starts) {
+            Lease lease = held.get(start);
+            if (lease == null || lease.lost) {
+                continue;
+            }
+            st.setString(1, sweep);
+            st.setLong(2, start);
+            st.setString(3, lease.owner);
+            ResultSet rs = st.executeQuery();
+            if (rs.next()) {
+                valid.add(start);
+            } else {
+                lost(lease);
+            }
+            rs.close();
+        }
+        Set<Long> writable = new HashSet<>();
+        for (Long domainId : domainIds) {
+            if (valid.contains(rangeStart(domainId))) {
+                writable.add(domainId);
+            }
+        }
+        return writable;
+    }
+
+    private void lost(Lease lease) {
+        if (!lease.lost) {
+            lease.lost = true;
+            Metrics.get().count("leases_lost");
+            System.out.println("lease " + lease.start + " taken over by another instance");
+        }
+    }
+
+    private long rangeStart(long domainId) {
+        // ranges are (start, start + rangeSize]
+        return (domainId - 1) / rangeSize * rangeSize;
+    }
+
+    /**
+     * heartbeat
+     */
+    public void run() {
+        while (keepOnRunning) {
+            try {
+                Thread.sleep(ttlSeconds * 1000L / 3);
+                extend();
+            } catch (InterruptedException e) {
+            } catch (Exception e) {
+                System.out.println("lease heartbeat failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void extend() throws SQLException {
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement st = pc.prepare("update validator_leases set expires_at=timestampadd(second, ?, now()) "
+                    + "where sweep=? and range_start=? and owner=? and done=0");
+            for (Lease lease : held.values()) {
+                if (lease.lost) {
+                    continue;
+                }
+                st.setInt(1, ttlSeconds);
+                st.setString(2, sweep);
+                st.setLong(3, lease.start);
+                st.setString(4, lease.owner);
+                if (st.executeUpdate() == 0) {
+                    lost(lease);
+                }
+                pc.getConnection().commit();
+            }
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+
+    /**
+     * All workers are done: what is left of the held ranges failed and
+     * would fail again, mark them done.
+     */
+    public void shutdown() {
+        keepOnRunning = false;
+        for (Lease lease : held.values()) {
+            if (lease.closed) {
+                markDone(lease);
+            }
+        }
+    }
+
+    public static class Lease {
+
+        private final long start;
+        private final long end;
+        private final String owner;
+        private int outstanding = 0;
+        private boolean closed = false;
+        private volatile boolean lost = false;
+
+        Lease(long start, long end, String owner) {
+            this.start = start;
+            this.end = end;
+            this.owner = owner;
+        }
+
+        /**
+         * @return the range is (start, end]
+         */
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public boolean isLost() {
+            return lost;
+        }
+    }
+}
@@ -3,12 +3,23 @@
  */
 package de.mieslinger.pdnsdbvalidator;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Drains the LogQueue in batches into a direct buffer which is written to
+ * the FileChannel when it is full or flushMillis have passed since the last
+ * write. After shutdown() the queue is written out completely.
  *
  * @author mieslingert
  */
@@ -16,35 +27,104 @@ public class LogFileWriter implements Runnable {
 
     private volatile boolean keepOnRunning = true;
 
-    private ConcurrentLinkedQueue<String> logFileQ;
-    private PrintWriter out;
+    private LogQueue logFileQ;
+    private FileChannel out;
+    private ByteBuffer buf;
+    // a lone surrogate becomes '?' instead of cutting the line short
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private long flushMillis;
+    private final int batchSize = 4096;
+
+    private final long started = System.currentTimeMillis();
+    private volatile long linesWritten = 0;
+    private volatile long bytesWritten = 0;
 
     private LogFileWriter() {
     }
 
-    public LogFileWriter(ConcurrentLinkedQueue<String> logFileQ, String logfile) throws IOException {
+    public LogFileWriter(LogQueue logFileQ, String logfile) throws IOException {
+        this(logFileQ, logfile, DataBase.getLogBufferSize(), DataBase.getLogFlushMillis());
+    }
+
+    public LogFileWriter(LogQueue logFileQ, String logfile, int bufferSize, long flushMillis) throws IOException {
         this.logFileQ = logFileQ;
-        FileWriter fstream = new FileWriter(logfile);
-        this.out = new PrintWriter(fstream);
+        this.out = FileChannel.open(Paths.get(logfile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.buf = ByteBuffer.allocateDirect(bufferSize);
+        this.flushMillis = flushMillis;
     }
 
     public void run() {
-        while (keepOnRunning) {
-            try {
-                String logLine = logFileQ.poll();
-                if (logLine != null) {
-                    out.write(logLine + "\n");
-                    // System.out.println("lfw: " + logLine);
-                } else {
-                    Thread.sleep(700);
+        ArrayList<String> batch = new ArrayList<>(batchSize);
+        long lastFlush = System.currentTimeMillis();
+        try {
+            // after shutdown() keep going until the queue is empty
+            while (keepOnRunning || !logFileQ.isEmpty()) {
+                try {
+                    String logLine = logFileQ.poll(flushMillis, TimeUnit.MILLISECONDS);
+                    if (logLine != null) {
+                        batch.add(logLine);
+                        logFileQ.drainTo(batch, batchSize - 1);
+                        for (String line : batch) {
+                            append(line);
+                        }
+                        linesWritten += batch.size();
+                        batch.clear();
+                    }
+                } catch (InterruptedException e) {
+                }
+                if (System.currentTimeMillis() - lastFlush >= flushMillis) {
+                    flush();
+                    lastFlush = System.currentTimeMillis();
                 }
-            } catch (InterruptedException e) {
             }
+            flush();
+        } catch (IOException e) {
+            System.out.println("log writer failed: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void append(String line) throws IOException {
+        CharBuffer in = CharBuffer.wrap(line);
+        encode(in);
+        encode(CharBuffer.wrap("\n"));
+    }
+
+    private void encode(CharBuffer in) throws IOException {
+        while (true) {
+            CoderResult cr = encoder.encode(in, buf, true);
+            if (!cr.isOverflow()) {
+                break;
+            }
+            // buffer full, write it out and go on with the rest of the line
+            flush();
         }
-        out.close();
+        encoder.reset();
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            bytesWritten += out.write(buf);
+        }
+        buf.clear();
     }
 
     public void shutdown() {
         this.keepOnRunning = false;
     }
+
+    public String getStats() {
+        long secs = Math.max(1, (System.currentTimeMillis() - started) / 1000);
+        return "lines: " + linesWritten + " (" + (linesWritten / secs) + "/s) bytes: " + bytesWritten
+                + " backlog: " + logFileQ.size() + " dropped: " + logFileQ.getDropped();
+    }
 }
@@ -0,0 +1,63 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue between the workers and a LogFileWriter. When the queue is
+ * full add() either waits for the writer (block) or throws the line away and
+ * counts it (drop).
+ *
+ * @author mieslingert
+ */
+public class LogQueue {
+
+    private final ArrayBlockingQueue<String> lines;
+    private final boolean dropWhenFull;
+    private final AtomicLong dropped = new AtomicLong();
+
+    public LogQueue(int capacity, String policy) {
+        this.lines = new ArrayBlockingQueue<>(capacity);
+        this.dropWhenFull = "drop".equals(policy);
+    }
+
+    public void add(String line) {
+        if (dropWhenFull) {
+            if (!lines.offer(line)) {
+                dropped.incrementAndGet();
+            }
+            return;
+        }
+        try {
+            lines.put(line);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+        }
+    }
+
+    String poll(long timeout, TimeUnit unit) throws InterruptedException {
+        return lines.poll(timeout, unit);
+    }
+
+    int drainTo(Collection<String> batch, int max) {
+        return lines.drainTo(batch, max);
+    }
+
+    public boolean isEmpty() {
+        return lines.isEmpty();
+    }
+
+    public int size() {
+        return lines.size();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+}
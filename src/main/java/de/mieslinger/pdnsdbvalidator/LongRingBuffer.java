@@ -0,0 +1,116 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded blocking FIFO of primitive longs. No boxing, no node objects and an
+ * O(1) size(). put() blocks while the buffer is full, poll() parks while it
+ * is empty. After close() no more values are accepted and poll() returns
+ * EMPTY right away once the remaining values are taken.
+ *
+ * @author mieslingert
+ */
+public class LongRingBuffer implements DomainIdSource {
+
+    /**
+     * returned by poll() when nothing is available; domain ids are positive
+     */
+    public static final long EMPTY = -1;
+
+    private final long[] ring;
+    private int head = 0;
+    private int tail = 0;
+    private int count = 0;
+    private boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    public LongRingBuffer(int capacity) {
+        this.ring = new long[capacity];
+    }
+
+    public void put(long value) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == ring.length && !closed) {
+                notFull.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("LongRingBuffer closed");
+            }
+            ring[tail] = value;
+            tail = (tail + 1) % ring.length;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the next value or EMPTY if nothing arrived within timeout or
+     * the buffer is closed and drained
+     */
+    public long poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (closed || nanos <= 0) {
+                    return EMPTY;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            long value = ring[head];
+            head = (head + 1) % ring.length;
+            count--;
+            notFull.signal();
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long poll() throws InterruptedException {
+        return poll(0, TimeUnit.NANOSECONDS);
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once closed and every value has been taken
+     */
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return closed && count == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
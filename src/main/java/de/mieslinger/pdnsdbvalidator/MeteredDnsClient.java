@@ -0,0 +1,85 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.TSIG;
+
+/**
+ * Counts queries, timeouts and response codes and records the latency of
+ * every answered query passed to the backend. Placed below the cache, so
+ * only real lookups are measured.
+ *
+ * @author mieslingert
+ */
+public class MeteredDnsClient implements DnsClient {
+
+    private final DnsClient backend;
+    private final Metrics metrics;
+
+    public MeteredDnsClient(DnsClient backend, Metrics metrics) {
+        this.backend = backend;
+        this.metrics = metrics;
+    }
+
+    public CompletableFuture<Message> sendAsync(Message query) {
+        metrics.count(Metrics.DNS_QUERIES);
+        CompletableFuture<Message> f = backend.sendAsync(query);
+        // after sendAsync(), the wait for the resolver's window is no DNS latency
+        final long start = System.nanoTime();
+        f.whenComplete((response, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                metrics.count(cause instanceof SocketTimeoutException ? Metrics.DNS_TIMEOUTS : Metrics.DNS_ERRORS);
+            } else {
+                // timeouts would only show the timeout
+                metrics.stage(Metrics.DNS_LOOKUP).recordSince(start);
+                metrics.count("dns_rcode{rcode=\"" + Rcode.string(response.getRcode()) + "\"}");
+            }
+        });
+        return f;
+    }
+
+    public void shutdown() {
+        backend.shutdown();
+    }
+
+    // org.xbill.DNS.Resolver, passed on to the backend
+    public void setPort(int port) {
+        backend.setPort(port);
+    }
+
+    public void setTCP(boolean flag) {
+        backend.setTCP(flag);
+    }
+
+    public void setIgnoreTruncation(boolean flag) {
+        backend.setIgnoreTruncation(flag);
+    }
+
+    public void setEDNS(int level) {
+        backend.setEDNS(level);
+    }
+
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        backend.setEDNS(level, payloadSize, flags, options);
+    }
+
+    public void setTSIGKey(TSIG key) {
+        backend.setTSIGKey(key);
+    }
+
+    public void setTimeout(int secs, int msecs) {
+        backend.setTimeout(secs, msecs);
+    }
+
+    public void setTimeout(int secs) {
+        backend.setTimeout(secs);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Latency histograms per stage of a zone check, counters and queue gauges.
+ *
+ * Exposed as MBean de.mieslinger.pdnsdbvalidator:type=Metrics, in the
+ * Prometheus text format on http://127.0.0.1:metricsPort/metrics and as a
+ * one line summary with rates since the previous summary.
+ *
+ * @author mieslingert
+ */
+public class Metrics implements DynamicMBean {
+
+    // domain name and SOA rows (or all records) from the DB
+    public static final String DOMAIN_FETCH = "domain_fetch";
+    // SOA (or parent NS) query for the delegation check, sent until answered
+    public static final String SOA_QUERY = "soa_query";
+    // every answered query sent to the recursor, cache hits excluded
+    public static final String DNS_LOOKUP = "dns_lookup";
+    public static final String RECORD_FETCH = "record_fetch";
+    public static final String RECORD_PARSE = "record_parse";
+    public static final String METADATA_WRITE = "metadata_write";
+    // from taking the zone to queueing its verdict
+    public static final String DOMAIN_TOTAL = "domain_total";
+
+    public static final String DOMAINS_CHECKED = "domains_checked";
+    public static final String DNS_QUERIES = "dns_queries";
+    public static final String DNS_TIMEOUTS = "dns_timeouts";
+    public static final String DNS_ERRORS = "dns_errors";
+    public static final String RECORDS_PARSED = "records_parsed";
+    public static final String RECORDS_INVALID = "records_invalid";
+
+    private static final String PREFIX = "pdnsdbvalidator_";
+    private static final double[] QUANTILES = {50, 90, 99, 99.9};
+
+    private static final Metrics instance = new Metrics();
+
+    private final Map<String, LatencyHistogram> stages = new LinkedHashMap<>();
+    private final ConcurrentSkipListMap<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    // for the rates in summary()
+    private long lastSummaryNanos = System.nanoTime();
+    private final Map<String, Long> lastCounts = new ConcurrentHashMap<>();
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+
+    private HttpServer http = null;
+
+    public Metrics() {
+        for (String stage : new String[]{DOMAIN_FETCH, SOA_QUERY, DNS_LOOKUP, RECORD_FETCH, RECORD_PARSE, METADATA_WRITE, DOMAIN_TOTAL}) {
+            stages.put(stage, new LatencyHistogram());
+        }
+        for (String counter : new String[]{DOMAINS_CHECKED, DNS_QUERIES, DNS_TIMEOUTS, DNS_ERRORS, RECORDS_PARSED, RECORDS_INVALID}) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    public LatencyHistogram stage(String name) {
+        return stages.get(name);
+    }
+
+    public void count(String name) {
+        add(name, 1);
+    }
+
+    public void add(String name, long n) {
+        LongAdder c = counters.get(name);
+        if (c == null) {
+            c = counters.computeIfAbsent(name, k -> new LongAdder());
+        }
+        c.add(n);
+    }
+
+    public long getCount(String name) {
+        LongAdder c = counters.get(name);
+        return c == null ? 0 : c.sum();
+    }
+
+    /**
+     * e.g. a queue size, read whenever metrics are exported
+     */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return stage latencies and counters, rates per second since the
+     * previous call
+     */
+    public synchronized String summary() {
+        long now = System.nanoTime();
+        double secs = Math.max(1e-3, (now - lastSummaryNanos) / 1e9);
+        lastSummaryNanos = now;
+        StringBuilder sb = new StringBuilder("metrics");
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            long total = e.getValue().sum();
+            Long last = lastCounts.put(e.getKey(), total);
+            double rate = (total - (last == null ? 0 : last)) / secs;
+            rates.put(e.getKey(), rate);
+            sb.append(' ').append(e.getKey()).append('=').append(total).append(String.format(" (%.1f/s)", rate));
+        }
+        for (Map.Entry<String, LatencyHistogram> e : stages.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long[] snap = h.snapshot();
+            sb.append(' ').append(e.getKey()).append(" n=").append(h.getCount())
+                    .append(" p50=").append(LatencyHistogram.percentile(snap, 50))
+                    .append("us p99=").append(LatencyHistogram.percentile(snap, 99))
+                    .append("us max=").append(h.getMaxMicros()).append("us");
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            sb.append(' ').append(e.getKey()).append('=').append(e.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prometheus text exposition format 0.0.4
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        String family = null;
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            // rcode counters carry a label: dns_rcode{rcode="NXDOMAIN"}
+            String name = e.getKey();
+            int brace = name.indexOf('{');
+            String base = PREFIX + (brace < 0 ? name : name.substring(0, brace)) + "_total";
+            if (!base.equals(family)) {
+                sb.append("# TYPE ").append(base).append(" counter\n");
+                family = base;
+            }
+            sb.append(base).append(brace < 0 ? "" : name.substring(brace)).append(' ').append(e.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            sb.append("# TYPE ").append(PREFIX).append(e.getKey()).append(" gauge\n");
+            sb.append(PREFIX).append(e.getKey()).append(' ').append(e.getValue().getAsLong()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram> e : stages.entrySet()) {
+            String base = PREFIX + e.getKey() + "_seconds";
+            LatencyHistogram h = e.getValue();
+            long[] snap = h.snapshot();
+            sb.append("# TYPE ").append(base).append(" summary\n");
+            for (double q : QUANTILES) {
+                sb.append(base).append("{quantile=\"").append(q / 100).append("\"} ")
+                        .append(LatencyHistogram.percentile(snap, q) / 1e6).append('\n');
+            }
+            sb.append(base).append("_sum ").append(h.getSumMicros() / 1e6).append('\n');
+            sb.append(base).append("_count ").append(h.getCount()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    public void registerMBean() throws Exception {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("de.mieslinger.pdnsdbvalidator:type=Metrics"));
+    }
+
+    /**
+     * serve /metrics on the loopback interface
+     */
+    public synchronized void startHttp(int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        });
+        http.start();
+    }
+
+    public synchronized void stopHttp() {
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+
+    /**
+     * JMX attribute values: counters, rates, gauges and stage percentiles
+     */
+    private Map<String, Object> attributes() {
+        Map<String, Object> attrs = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            String name = jmxName(e.getKey());
+            attrs.put(name, e.getValue().sum());
+            Double rate = rates.get(e.getKey());
+            attrs.put(name + "_per_second", rate == null ? 0.0 : rate);
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            attrs.put(jmxName(e.getKey()), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, LatencyHistogram> e : stages.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            long[] snap = h.snapshot();
+            attrs.put(e.getKey() + "_count", h.getCount());
+            attrs.put(e.getKey() + "_p50_micros", LatencyHistogram.percentile(snap, 50));
+            attrs.put(e.getKey() + "_p99_micros", LatencyHistogram.percentile(snap, 99));
+            attrs.put(e.getKey() + "_max_micros", h.getMaxMicros());
+        }
+        return attrs;
+    }
+
+    private static String jmxName(String name) {
+        return name.replaceAll("[{}=\"]+", "_").replaceAll("_$", "");
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Object value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read only: " + attribute.getName());
+    }
+
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Object> attrs = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            if (attrs.containsKey(name)) {
+                list.add(new Attribute(name, attrs.get(name)));
+            }
+        }
+        return list;
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+        // no operations, read-only attributes
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        for (Map.Entry<String, Object> e : attributes().entrySet()) {
+            infos.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "pdnsdbvalidator metrics",
+                infos.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CAARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.SPFRecord;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * Parses records rows into dnsjava records.
+ *
+ * The content is read field by field in one pass (fields are separated by
+ * single blanks, like split(" ")), numbers are parsed in place. Names are
+ * cached, so the zone apex and common targets like the name servers are only
+ * parsed once. The result goes into one ResourceRecord which is reused for
+ * every row.
+ *
+ * Not thread safe, one per worker.
+ *
+ * @author mieslingert
+ */
+public class RecordParser {
+
+    private static final int MAX_STRING = 255;
+
+    private final DnsClient resolver;
+    private final int nameCacheSize;
+    private final HashMap<String, Name> names;
+    private final ArrayList<String> txtStrings = new ArrayList<>();
+    private final ResourceRecord holder = new ResourceRecord();
+
+    // field cursor over s, the current field is [start, end)
+    private String s;
+    private int limit;
+    private int pos;
+    private int start;
+    private int end;
+
+    /**
+     * @param nameCacheSize names to keep, 0 disables the cache
+     */
+    public RecordParser(DnsClient resolver, int nameCacheSize) {
+        this.resolver = resolver;
+        this.nameCacheSize = nameCacheSize;
+        this.names = new HashMap<>(nameCacheSize > 0 ? Math.min(nameCacheSize, 1 << 16) * 4 / 3 : 0);
+    }
+
+    /**
+     * @return the parse result, only valid until the next call
+     * @throws CancellationException if interrupted during the TXT lookup,
+     * the interrupt flag is set again
+     */
+    public ResourceRecord parse(String name, long ttl, String type, int prio, String content) {
+        parse(holder, name, ttl, type, prio, content);
+        return holder;
+    }
+
+    void parse(ResourceRecord rr, String name, long ttl, String type, int prio, String content) {
+        rr.reset(name, ttl, type, prio, content);
+        try {
+            switch (type) {
+                case "NS":
+                    rr.set(new NSRecord(ownerName(name), DClass.IN, ttl, targetName(content)), false, true);
+                    break;
+                case "CNAME":
+                    rr.set(new CNAMERecord(ownerName(name), DClass.IN, ttl, targetName(content)), false, false);
+                    break;
+                case "PTR":
+                    rr.set(new PTRRecord(ownerName(name), DClass.IN, ttl, targetName(content)), false, false);
+                    break;
+                case "MX":
+                    rr.set(new MXRecord(ownerName(name), DClass.IN, ttl, prio, targetName(content)), false, false);
+                    break;
+                case "SOA": {
+                    Name soan = ownerName(name);
+                    begin(content);
+                    Name pri = nameField("primary");
+                    Name mail = nameField("contact");
+                    long serial = longField("serial");
+                    long refresh = longField("refresh");
+                    long retry = longField("retry");
+                    long expire = longField("expire");
+                    long minimum = longField("minimum");
+                    rr.set(new SOARecord(soan, DClass.IN, ttl, pri, mail, serial, refresh, retry, expire, minimum), true, false);
+                    break;
+                }
+                case "A":
+                    rr.set(new ARecord(ownerName(name), DClass.IN, ttl, InetAddress.getByName(content)), false, false);
+                    break;
+                case "AAAA": {
+                    Name aaaan = ownerName(name);
+                    // only jdk9+ know about ipv6 mapped ipv4 addresses
+                    // exclude Strings starting with 0:0:0:0:0:ffff:
+                    if (!content.startsWith("0:0:0:0:0:ffff:")) {
+                        rr.set(new AAAARecord(aaaan, DClass.IN, ttl, InetAddress.getByName(content)), false, false);
+                    } else {
+                        rr.set(null, false, false);
+                    }
+                    break;
+                }
+                case "SRV": {
+                    Name srvn = ownerName(name);
+                    begin(content);
+                    int weight = intField("weight", 0xFFFF);
+                    int port = intField("port", 0xFFFF);
+                    Name host = nameField("target");
+                    rr.set(new SRVRecord(srvn, DClass.IN, ttl, prio, weight, port, host), false, false);
+                    break;
+                }
+                case "SPF":
+                    rr.set(new SPFRecord(ownerName(name), DClass.IN, ttl, content), false, false);
+                    break;
+                case "TXT": {
+                    Name txtn = ownerName(name);
+                    if (!txtExists(txtn)) {
+                        System.out.println("TXT name: " + name + " content: " + content + " failed");
+                        rr.fail("TXT lookup failed");
+                        break;
+                    }
+                    if (content.indexOf('"') >= 0) {
+                        splitQuoted(content);
+                        rr.set(txtStrings.isEmpty() ? null : new TXTRecord(txtn, DClass.IN, ttl, txtStrings), false, false);
+                    } else if (content.length() > MAX_STRING) {
+                        txtStrings.clear();
+                        for (int i = 0; i < content.length(); i += MAX_STRING) {
+                            txtStrings.add(content.substring(i, Math.min(i + MAX_STRING, content.length())));
+                        }
+                        rr.set(new TXTRecord(txtn, DClass.IN, ttl, txtStrings), false, false);
+                    } else {
+                        rr.set(new TXTRecord(txtn, DClass.IN, ttl, content), false, false);
+                    }
+                    break;
+                }
+                case "CAA": {
+                    Name caan = ownerName(name);
+                    begin(content);
+                    int flags = intField("flags", 0xFF);
+                    String tag = stringField("tag");
+                    String value = stringField("value");
+                    rr.set(new CAARecord(caan, DClass.IN, ttl, flags, tag, value), false, false);
+                    break;
+                }
+                default:
+                    rr.fail("Record type not supported");
+                    break;
+            }
+        } catch (InterruptedException e) {
+            // shutting down: the record is not broken, the zone gets no verdict
+            Thread.currentThread().interrupt();
+            throw new CancellationException("interrupted while checking " + name);
+        } catch (Exception e) {
+            rr.fail("FAILED: " + e.toString());
+        }
+    }
+
+    /**
+     * @return number of blank separated fields, like split(" ").length
+     */
+    public int fieldCount(String content) {
+        begin(content);
+        int n = 0;
+        while (next()) {
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * compare primary, contact and serial of the SOA content in the DB with
+     * the SOA seen in DNS
+     */
+    public boolean soaMatches(String soaContent, SOARecord soaRec) {
+        begin(soaContent);
+        return next() && fieldEquals(soaRec.getHost().toString(true))
+                && next() && fieldEquals(soaRec.getAdmin().toString(true))
+                && next() && parseLong() == soaRec.getSerial();
+    }
+
+    public int getCachedNames() {
+        return names.size();
+    }
+
+    /**
+     * owner names are stored without the final dot, a trailing dot in the DB
+     * is an empty label
+     */
+    private Name ownerName(String n) throws TextParseException {
+        if (n.endsWith(".")) {
+            return Name.fromString(n + ".");
+        }
+        return cachedName(n);
+    }
+
+    /**
+     * ignore Problems with trailing dots. Newer PDNSes do accept them
+     */
+    private Name targetName(String n) throws TextParseException {
+        return cachedName(n);
+    }
+
+    private Name cachedName(String n) throws TextParseException {
+        Name name = nameCacheSize > 0 ? names.get(n) : null;
+        if (name == null) {
+            name = Name.fromString(n, Name.root);
+            if (nameCacheSize > 0) {
+                if (names.size() >= nameCacheSize) {
+                    names.clear();
+                }
+                names.put(n, name);
+            }
+        }
+        return name;
+    }
+
+    private boolean txtExists(Name txtn) throws InterruptedException {
+        Message response;
+        try {
+            response = resolver.query(txtn, Type.TXT).get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+        if (response.getRcode() != Rcode.NOERROR) {
+            return false;
+        }
+        for (Record rec : response.getSectionArray(Section.ANSWER)) {
+            if (rec.getType() == Type.TXT) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * quoted strings and unquoted words, what "\"([^\"]*)\"|(\\S+)" finds
+     */
+    private void splitQuoted(String content) {
+        txtStrings.clear();
+        int len = content.length();
+        int i = 0;
+        while (i < len) {
+            char c = content.charAt(i);
+            if (isSpace(c)) {
+                i++;
+                continue;
+            }
+            if (c == '"') {
+                int close = content.indexOf('"', i + 1);
+                if (close >= 0) {
+                    txtStrings.add(content.substring(i + 1, close));
+                    i = close + 1;
+                    continue;
+                }
+            }
+            int j = i + 1;
+            while (j < len && !isSpace(content.charAt(j))) {
+                j++;
+            }
+            txtStrings.add(content.substring(i, j));
+            i = j;
+        }
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private void begin(String content) {
+        s = content;
+        pos = 0;
+        // like split(" "), trailing blanks are no empty fields
+        limit = content.length();
+        while (limit > 0 && content.charAt(limit - 1) == ' ') {
+            limit--;
+        }
+    }
+
+    private boolean next() {
+        if (pos > limit) {
+            return false;
+        }
+        start = pos;
+        int blank = s.indexOf(' ', pos);
+        end = (blank < 0 || blank > limit) ? limit : blank;
+        pos = end + 1;
+        return true;
+    }
+
+    private boolean fieldEquals(String value) {
+        return end - start == value.length() && s.regionMatches(start, value, 0, value.length());
+    }
+
+    private String stringField(String what) throws TextParseException {
+        if (!next()) {
+            throw new TextParseException("missing " + what);
+        }
+        return s.substring(start, end);
+    }
+
+    private Name nameField(String what) throws TextParseException {
+        return targetName(stringField(what));
+    }
+
+    private long longField(String what) throws TextParseException {
+        if (!next()) {
+            throw new TextParseException("missing " + what);
+        }
+        return parseLong();
+    }
+
+    /**
+     * an unsigned 8 or 16 bit field, out of range is an error and not cut
+     */
+    private int intField(String what, int max) throws TextParseException {
+        long v = longField(what);
+        if (v < 0 || v > max) {
+            throw new TextParseException(what + " out of range: " + v);
+        }
+        return (int) v;
+    }
+
+    /**
+     * Long.parseLong() of the current field without the substring
+     */
+    private long parseLong() {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            // empty or possibly out of range, let Long produce the same error
+            return Long.parseLong(s.substring(start, end));
+        }
+        long v = 0;
+        for (; i < end; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new NumberFormatException("For input string: \"" + s.substring(start, end) + "\"");
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+
+/**
+ * Spreads queries over several recursors.
+ *
+ * Selection is weighted random or least latency (EWMA of answered queries
+ * times queries in flight). Timeouts, other failures and SERVFAIL count as
+ * an answer after the full timeout, a recursor without a measurement yet
+ * starts at the mean of the measured ones, or at the timeout. Each recursor may have a token bucket (qps), a
+ * recursor without tokens is skipped, if all are out of tokens the caller
+ * waits until the first bucket has one again. A recursor which fails
+ * ejectAfter times in a row is ejected for ejectMillis, doubling with every
+ * further ejection until it answers again. A query that times out is retried
+ * on another recursor, or on one already tried when no other is left.
+ *
+ * The window bounds the queries in flight over all recursors, a query keeps
+ * its permit across retries.
+ *
+ * Spec: comma separated "address[;weight=N][;qps=N]".
+ *
+ * @author mieslingert
+ */
+public class RecursorPool implements DnsClient {
+
+    public static final String WEIGHTED = "weighted";
+    public static final String LEAST_LATENCY = "leastLatency";
+
+    private static final long MAX_EJECT_MILLIS = 300000;
+
+    private final List<Recursor> recursors;
+    private final boolean leastLatency;
+    private final int retries;
+    private final int ejectAfter;
+    private final long ejectMillis;
+    private final AdjustableSemaphore window;
+    private final Metrics metrics;
+    private volatile long timeoutMicros;
+    // callers out of tokens wait here, woken when a refilled bucket has more
+    private final Object refill = new Object();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    public RecursorPool(String spec, String selection, int maxInFlight, int timeoutMillis,
+            int retries, int ejectAfter, long ejectMillis, Metrics metrics) throws IOException {
+        this(selection, maxInFlight, timeoutMillis, retries, ejectAfter, ejectMillis, metrics);
+        for (String entry : spec.split(",")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] f = entry.trim().split(";");
+            int weight = 1;
+            double qps = 0;
+            for (int i = 1; i < f.length; i++) {
+                String[] kv = f[i].trim().split("=", 2);
+                if (kv.length == 2 && kv[0].equals("weight")) {
+                    weight = Integer.parseInt(kv[1]);
+                } else if (kv.length == 2 && kv[0].equals("qps")) {
+                    qps = Double.parseDouble(kv[1]);
+                } else {
+                    throw new IllegalArgumentException("recursor option not understood: " + f[i]);
+                }
+            }
+            // the pool's window limits, each resolver may use all of it
+            add(f[0].trim(), weight, qps, new AsyncResolver(f[0].trim(), maxInFlight, timeoutMillis));
+        }
+        if (recursors.isEmpty()) {
+            throw new IllegalArgumentException("no recursor in '" + spec + "'");
+        }
+    }
+
+    RecursorPool(String selection, int maxInFlight, int timeoutMillis, int retries, int ejectAfter, long ejectMillis, Metrics metrics) {
+        this.leastLatency = LEAST_LATENCY.equals(selection);
+        this.timeoutMicros = TimeUnit.MILLISECONDS.toMicros(timeoutMillis);
+        this.retries = retries;
+        this.ejectAfter = ejectAfter;
+        this.ejectMillis = ejectMillis;
+        this.window = new AdjustableSemaphore(maxInFlight);
+        this.metrics = metrics;
+        this.recursors = new ArrayList<>();
+    }
+
+    /**
+     * @param qps 0 for no rate limit
+     */
+    void add(String address, int weight, double qps, DnsClient backend) {
+        recursors.add(new Recursor(address, weight, qps, backend));
+    }
+
+    public CompletableFuture<Message> sendAsync(Message query) {
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CompletableFuture<Message> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        CompletableFuture<Message> result = new CompletableFuture<>();
+        attempt(query, new ArrayList<>(), retries, result);
+        return result.whenComplete((response, e) -> window.release());
+    }
+
+    private void attempt(Message query, List<Recursor> tried, int retriesLeft, CompletableFuture<Message> result) {
+        Recursor r;
+        try {
+            r = select(tried);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.completeExceptionally(e);
+            return;
+        }
+        tried.add(r);
+        metrics.count("recursor_queries{recursor=\"" + r.address + "\"}");
+        final long start = System.nanoTime();
+        r.inFlight.incrementAndGet();
+        r.resolver.sendAsync(query).whenComplete((response, e) -> {
+            r.inFlight.decrementAndGet();
+            if (e == null) {
+                // a SERVFAIL is no answer worth waiting for
+                r.answered(response.getRcode() == Rcode.SERVFAIL
+                        ? timeoutMicros : TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                result.complete(response);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof SocketTimeoutException) {
+                metrics.count("recursor_timeouts{recursor=\"" + r.address + "\"}");
+            }
+            if (r.failed(timeoutMicros)) {
+                metrics.count("recursor_ejections{recursor=\"" + r.address + "\"}");
+            }
+            if (cause instanceof SocketTimeoutException && retriesLeft > 0) {
+                metrics.count("dns_retries");
+                // not on the receiver thread, select() may wait for tokens
+                CompletableFuture.runAsync(() -> attempt(query, tried, retriesLeft - 1, result));
+            } else {
+                result.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * best healthy recursor with a token which was not tried yet, or which
+     * was if every healthy one was tried
+     */
+    private Recursor select(List<Recursor> tried) throws InterruptedException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            List<Recursor> candidates = new ArrayList<>(recursors.size());
+            for (Recursor r : recursors) {
+                if (!tried.contains(r) && r.ejectedUntil <= now) {
+                    candidates.add(r);
+                }
+            }
+            if (candidates.isEmpty()) {
+                // a retry after all were tried: again on a healthy one
+                for (Recursor r : recursors) {
+                    if (r.ejectedUntil <= now) {
+                        candidates.add(r);
+                    }
+                }
+            }
+            if (candidates.isEmpty()) {
+                // everything ejected: the one back soonest
+                Recursor soonest = null;
+                for (Recursor r : recursors) {
+                    if (soonest == null || r.ejectedUntil < soonest.ejectedUntil) {
+                        soonest = r;
+                    }
+                }
+                candidates.add(soonest);
+            }
+            long waitNanos = Long.MAX_VALUE;
+            while (!candidates.isEmpty()) {
+                Recursor r = leastLatency ? fastest(candidates, unmeasuredMicros()) : weighted(candidates);
+                long due = r.tryTake();
+                if (due == 0) {
+                    return r;
+                }
+                waitNanos = Math.min(waitNanos, due);
+                candidates.remove(r);
+            }
+            // out of tokens everywhere: until the first bucket has one again
+            waiting.incrementAndGet();
+            try {
+                synchronized (refill) {
+                    refill.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+    }
+
+    private static Recursor weighted(List<Recursor> candidates) {
+        int total = 0;
+        for (Recursor r : candidates) {
+            total += r.weight;
+        }
+        int pick = ThreadLocalRandom.current().nextInt(Math.max(1, total));
+        for (Recursor r : candidates) {
+            pick -= r.weight;
+            if (pick < 0) {
+                return r;
+            }
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * latency assumed for a recursor that has not answered yet: the mean of
+     * the measured ones, or the timeout if none is
+     */
+    private double unmeasuredMicros() {
+        double sum = 0;
+        int measured = 0;
+        for (Recursor r : recursors) {
+            if (r.ewmaMicros > 0) {
+                sum += r.ewmaMicros;
+                measured++;
+            }
+        }
+        return measured > 0 ? sum / measured : Math.max(1, timeoutMicros);
+    }
+
+    private static Recursor fastest(List<Recursor> candidates, double unmeasuredMicros) {
+        Recursor best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Recursor r : candidates) {
+            double ewma = r.ewmaMicros > 0 ? r.ewmaMicros : unmeasuredMicros;
+            double score = ewma * (r.inFlight.get() + 1);
+            if (score < bestScore) {
+                bestScore = score;
+                best = r;
+            }
+        }
+        return best;
+    }
+
+    public int getInFlight() {
+        return window.getLimit() - window.availablePermits();
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        window.setLimit(maxInFlight);
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder("recursors:");
+        long now = System.currentTimeMillis();
+        for (Recursor r : recursors) {
+            sb.append(' ').append(r.address).append(String.format(" ewma=%.1fms", r.ewmaMicros / 1000))
+                    .append(" in flight=").append(r.inFlight.get());
+            if (r.ejectedUntil > now) {
+                sb.append(" EJECTED");
+            }
+        }
+        return sb.toString();
+    }
+
+    public void shutdown() {
+        for (Recursor r : recursors) {
+            r.resolver.shutdown();
+        }
+    }
+
+    private class Recursor {
+
+        private final String address;
+        private final int weight;
+        private final DnsClient resolver;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        // token bucket, qps 0 is unlimited
+        private final double qps;
+        private double tokens;
+        private long refilled = System.nanoTime();
+        // health
+        private volatile double ewmaMicros = 0;
+        private int failures = 0;
+        private int ejections = 0;
+        private volatile long ejectedUntil = 0;
+
+        Recursor(String address, int weight, double qps, DnsClient resolver) {
+            this.address = address;
+            this.weight = weight;
+            this.qps = qps;
+            this.tokens = qps;
+            this.resolver = resolver;
+        }
+
+        /**
+         * @return 0 if a token was taken, else nanoseconds until the next one
+         */
+        synchronized long tryTake() {
+            if (qps <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            // burst of one second
+            tokens = Math.min(qps, tokens + (now - refilled) * qps / 1e9);
+            refilled = now;
+            if (tokens < 1) {
+                return Math.max(1, (long) Math.ceil((1 - tokens) * 1e9 / qps));
+            }
+            tokens--;
+            if (tokens >= 1 && waiting.get() > 0) {
+                // refilled beyond this query, the waiting callers may take the rest
+                synchronized (refill) {
+                    refill.notifyAll();
+                }
+            }
+            return 0;
+        }
+
+        synchronized void answered(long micros) {
+            sample(micros);
+            failures = 0;
+            ejections = 0;
+        }
+
+        /**
+         * @param micros counted as its latency, the timeout
+         * @return true if the recursor got ejected
+         */
+        synchronized boolean failed(long micros) {
+            sample(micros);
+            if (++failures < ejectAfter) {
+                return false;
+            }
+            failures = 0;
+            ejections++;
+            ejectedUntil = System.currentTimeMillis() + Math.min(MAX_EJECT_MILLIS, ejectMillis << Math.min(ejections - 1, 16));
+            return true;
+        }
+
+        private void sample(long micros) {
+            // at least 1, 0 means not measured
+            micros = Math.max(1, micros);
+            ewmaMicros = ewmaMicros == 0 ? micros : ewmaMicros * 0.9 + micros * 0.1;
+        }
+    }
+
+    // org.xbill.DNS.Resolver, passed on to every recursor
+    public void setPort(int port) {
+        for (Recursor r : recursors) {
+            r.resolver.setPort(port);
+        }
+    }
+
+    public void setTimeout(int secs, int msecs) {
+        timeoutMicros = TimeUnit.SECONDS.toMicros(secs) + TimeUnit.MILLISECONDS.toMicros(msecs);
+        for (Recursor r : recursors) {
+            r.resolver.setTimeout(secs, msecs);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.Type;
+
+/**
+ * Shared response cache in front of a DnsClient.
+ *
+ * Positive answers are kept for the smallest TTL in the answer section,
+ * NXDOMAIN and NODATA for min(SOA TTL, SOA minimum) of the authority SOA
+ * (RFC 2308 section 5), SERVFAIL for servfailTtl seconds (RFC 2308 section
+ * 7.1). Timeouts are not cached. The cache is an LRU bounded by maxEntries.
+ *
+ * Identical queries that arrive while one is in flight share its future.
+ * Cached Messages are shared between callers and must not be modified.
+ *
+ * @author mieslingert
+ */
+public class ResolverCache implements DnsClient {
+
+    private final DnsClient backend;
+    private final int maxTtl;
+    private final int servfailTtl;
+    private final Map<Key, Entry> cache;
+    private final ConcurrentHashMap<Key, CompletableFuture<Message>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public ResolverCache(DnsClient backend, final int maxEntries, int maxTtl, int servfailTtl) {
+        this.backend = backend;
+        this.maxTtl = maxTtl;
+        this.servfailTtl = servfailTtl;
+        this.cache = new LinkedHashMap<Key, Entry>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public CompletableFuture<Message> sendAsync(Message query) {
+        Record question = query.getQuestion();
+        final Key key = new Key(question.getName(), question.getType());
+
+        Entry entry;
+        synchronized (cache) {
+            entry = cache.get(key);
+            if (entry != null && entry.expires < System.currentTimeMillis()) {
+                cache.remove(key);
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            if (entry.response.getRcode() != Rcode.NOERROR || entry.response.getSectionArray(Section.ANSWER).length == 0) {
+                negativeHits.incrementAndGet();
+            }
+            return CompletableFuture.completedFuture(entry.response);
+        }
+
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        CompletableFuture<Message> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.incrementAndGet();
+            return running;
+        }
+        misses.incrementAndGet();
+
+        backend.sendAsync(query).whenComplete((response, e) -> {
+            if (e == null) {
+                long ttl = ttlOf(response);
+                if (ttl > 0) {
+                    synchronized (cache) {
+                        cache.put(key, new Entry(response, System.currentTimeMillis() + ttl * 1000));
+                    }
+                }
+            }
+            inFlight.remove(key, future);
+            if (e != null) {
+                future.completeExceptionally(e);
+            } else {
+                future.complete(response);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return seconds to keep the response, 0 for don't cache
+     */
+    long ttlOf(Message response) {
+        int rcode = response.getRcode();
+        if (rcode == Rcode.SERVFAIL) {
+            return servfailTtl;
+        }
+        if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
+            return 0;
+        }
+
+        Record[] answers = response.getSectionArray(Section.ANSWER);
+        long ttl = Long.MAX_VALUE;
+        if (rcode == Rcode.NOERROR && answers.length > 0) {
+            for (Record r : answers) {
+                ttl = Math.min(ttl, r.getTTL());
+            }
+        } else {
+            // negative answer, TTL comes from the SOA in the authority section
+            for (Record r : response.getSectionArray(Section.AUTHORITY)) {
+                if (r.getType() == Type.SOA) {
+                    ttl = Math.min(ttl, Math.min(r.getTTL(), ((SOARecord) r).getMinimum()));
+                }
+            }
+            if (ttl == Long.MAX_VALUE) {
+                // without SOA the negative answer must not be cached
+                return 0;
+            }
+        }
+        return Math.min(ttl, maxTtl);
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public String getStats() {
+        return "dns cache size: " + size() + " hits: " + hits.get() + " (negative: " + negativeHits.get() + ")"
+                + " misses: " + misses.get() + " coalesced: " + coalesced.get();
+    }
+
+    public void shutdown() {
+        backend.shutdown();
+    }
+
+    private static class Key {
+
+        private final Name name;
+        private final int type;
+
+        Key(Name name, int type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            // Name.equals ignores case
+            return type == k.type && name.equals(k.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + type;
+        }
+    }
+
+    private static class Entry {
+
+        private final Message response;
+        private final long expires;
+
+        Entry(Message response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+
+    // org.xbill.DNS.Resolver, passed on to the backend
+    public void setPort(int port) {
+        backend.setPort(port);
+    }
+
+    public void setTCP(boolean flag) {
+        backend.setTCP(flag);
+    }
+
+    public void setIgnoreTruncation(boolean flag) {
+        backend.setIgnoreTruncation(flag);
+    }
+
+    public void setEDNS(int level) {
+        backend.setEDNS(level);
+    }
+
+    public void setEDNS(int level, int payloadSize, int flags, List options) {
+        backend.setEDNS(level, payloadSize, flags, options);
+    }
+
+    public void setTSIGKey(TSIG key) {
+        backend.setTSIGKey(key);
+    }
+
+    public void setTimeout(int secs, int msecs) {
+        backend.setTimeout(secs, msecs);
+    }
+
+    public void setTimeout(int secs) {
+        backend.setTimeout(secs);
+    }
+}
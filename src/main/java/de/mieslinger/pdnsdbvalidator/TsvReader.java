@@ -0,0 +1,234 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a MySQL tab separated export (mysqldump --tab, select ... into
+ * outfile, mysql -B) row by row. The file is memory-mapped in windows of
+ * chunkSize bytes, a row crossing the end of a window starts the next one.
+ * Fields are located in the mapped bytes; only fields asked for are copied,
+ * numbers are parsed in place.
+ *
+ * Escapes: a backslash escapes the next byte (literal tab, newline or
+ * backslash), \0 \b \n \r \t \Z are decoded, a field of just \N is NULL.
+ * mysql -B writes NULL as a bare NULL instead, with bareNull set that is
+ * NULL as well; otherwise it is text.
+ *
+ * Not thread safe.
+ *
+ * @author mieslingert
+ */
+public class TsvReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final int chunkSize;
+    private final boolean bareNull;
+    private MappedByteBuffer buf = null;
+    // file offset of buf[0]
+    private long bufStart = 0;
+    private int pos = 0;
+    private long line = 0;
+
+    private int fields = 0;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private byte[] scratch = new byte[256];
+
+    public TsvReader(String path, int chunkSize) throws IOException {
+        this(path, chunkSize, false);
+    }
+
+    /**
+     * @param bareNull a field of just NULL is NULL (mysql -B)
+     */
+    public TsvReader(String path, int chunkSize, boolean bareNull) throws IOException {
+        this.bareNull = bareNull;
+        this.file = new RandomAccessFile(path, "r");
+        this.channel = file.getChannel();
+        this.size = channel.size();
+        this.chunkSize = chunkSize;
+        map(0, (int) Math.min(chunkSize, size));
+    }
+
+    private void map(long start, int length) throws IOException {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        bufStart = start;
+        pos = 0;
+    }
+
+    /**
+     * @return false at the end of the file
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            int limit = buf.limit();
+            int end = lineEnd(pos, limit);
+            if (end >= 0) {
+                split(pos, end);
+                pos = end + 1;
+                line++;
+                return true;
+            }
+            long lineStart = bufStart + pos;
+            if (lineStart >= size) {
+                return false;
+            }
+            if (bufStart + limit >= size) {
+                // last row without a newline
+                split(pos, limit);
+                pos = limit;
+                line++;
+                return true;
+            }
+            // the row continues behind the window, longer rows get a larger one
+            long length = Math.max(chunkSize, 2L * (limit - pos));
+            map(lineStart, (int) Math.min(Integer.MAX_VALUE, Math.min(length, size - lineStart)));
+        }
+    }
+
+    private int lineEnd(int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            byte b = buf.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void split(int from, int to) {
+        fields = 0;
+        int start = from;
+        for (int i = from; i < to; i++) {
+            byte b = buf.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '\t') {
+                addField(start, i);
+                start = i + 1;
+            }
+        }
+        addField(start, to);
+    }
+
+    private void addField(int start, int end) {
+        if (fields == starts.length) {
+            int[] s = new int[fields * 2];
+            int[] e = new int[fields * 2];
+            System.arraycopy(starts, 0, s, 0, fields);
+            System.arraycopy(ends, 0, e, 0, fields);
+            starts = s;
+            ends = e;
+        }
+        starts[fields] = start;
+        ends[fields] = end;
+        fields++;
+    }
+
+    /**
+     * @return line number of the current row, starting at 1
+     */
+    public long getLine() {
+        return line;
+    }
+
+    public int getFieldCount() {
+        return fields;
+    }
+
+    public boolean isNull(int field) {
+        int s = starts[field];
+        int length = ends[field] - s;
+        if (length == 2) {
+            return buf.get(s) == '\\' && buf.get(s + 1) == 'N';
+        }
+        return bareNull && length == 4 && buf.get(s) == 'N' && buf.get(s + 1) == 'U' && buf.get(s + 2) == 'L' && buf.get(s + 3) == 'L';
+    }
+
+    /**
+     * @return the unescaped field, null for NULL
+     */
+    public String getString(int field) {
+        if (isNull(field)) {
+            return null;
+        }
+        int s = starts[field];
+        int e = ends[field];
+        if (scratch.length < e - s) {
+            scratch = new byte[Math.max(e - s, scratch.length * 2)];
+        }
+        int n = 0;
+        for (int i = s; i < e; i++) {
+            byte b = buf.get(i);
+            if (b == '\\' && i + 1 < e) {
+                b = unescape(buf.get(++i));
+            }
+            scratch[n++] = b;
+        }
+        return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private static byte unescape(byte b) {
+        switch (b) {
+            case '0':
+                return 0;
+            case 'b':
+                return '\b';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'Z':
+                return 26;
+            default:
+                return b;
+        }
+    }
+
+    /**
+     * @return the field as a number, 0 for NULL like ResultSet.getLong()
+     */
+    public long getLong(int field) throws IOException {
+        if (isNull(field)) {
+            return 0;
+        }
+        int s = starts[field];
+        int e = ends[field];
+        boolean negative = s < e && buf.get(s) == '-';
+        if (negative) {
+            s++;
+        }
+        if (s == e) {
+            throw new IOException("line " + line + ": empty number in field " + field);
+        }
+        long v = 0;
+        for (int i = s; i < e; i++) {
+            int d = buf.get(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("line " + line + ": not a number in field " + field);
+            }
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    public void close() throws IOException {
+        buf = null;
+        channel.close();
+        file.close();
+    }
+}
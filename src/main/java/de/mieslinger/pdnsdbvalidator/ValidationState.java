@@ -0,0 +1,189 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Local store of the last verdict per domain for incremental runs.
+ *
+ * The file is append-only: every verdict is written as a fixed size record
+ * (domain_id, fingerprint, checked timestamp, verdict), later records win.
+ * On open the file is read into open addressing arrays and rewritten with one
+ * record per domain. A torn record at the end (crash) is ignored.
+ *
+ * @author mieslingert
+ */
+public class ValidationState {
+
+    public static final byte OK = 0;
+    public static final byte BROKEN = 1;
+    // DNS failed, always check again
+    public static final byte INCONCLUSIVE = 2;
+
+    private static final long FREE = 0;
+
+    private final File file;
+    private DataOutputStream out;
+
+    private long[] keys;
+    private long[] fingerprints;
+    private long[] checked;
+    private byte[] verdicts;
+    private int size = 0;
+
+    private long skipped = 0;
+
+    public ValidationState(String fileName) throws IOException {
+        this.file = new File(fileName);
+        allocate(1 << 16);
+        if (file.exists()) {
+            load();
+        }
+        compact();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+    }
+
+    /**
+     * @return true if the zone has the same fingerprint as at its last check
+     * and that verdict is conclusive and younger than maxAgeMillis
+     */
+    public synchronized boolean isCurrent(long domainId, long fingerprint, long maxAgeMillis) {
+        int slot = find(domainId);
+        if (keys[slot] == FREE
+                || fingerprints[slot] != fingerprint
+                || verdicts[slot] == INCONCLUSIVE
+                || System.currentTimeMillis() - checked[slot] > maxAgeMillis) {
+            return false;
+        }
+        skipped++;
+        return true;
+    }
+
+    public synchronized void record(long domainId, long fingerprint, byte verdict) throws IOException {
+        long now = System.currentTimeMillis();
+        put(domainId, fingerprint, now, verdict);
+        write(out, domainId, fingerprint, now, verdict);
+    }
+
+    public synchronized long getSkipped() {
+        return skipped;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            while (true) {
+                long domainId = in.readLong();
+                long fingerprint = in.readLong();
+                long ts = in.readLong();
+                byte verdict = in.readByte();
+                put(domainId, fingerprint, ts, verdict);
+            }
+        } catch (EOFException e) {
+            // end of file or torn last record
+        } finally {
+            in.close();
+        }
+    }
+
+    private void compact() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream snap = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != FREE) {
+                    write(snap, keys[i], fingerprints[i], checked[i], verdicts[i]);
+                }
+            }
+        } finally {
+            snap.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not replace " + file);
+        }
+    }
+
+    private static void write(DataOutputStream o, long domainId, long fingerprint, long ts, byte verdict) throws IOException {
+        o.writeLong(domainId);
+        o.writeLong(fingerprint);
+        o.writeLong(ts);
+        o.writeByte(verdict);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        fingerprints = new long[capacity];
+        checked = new long[capacity];
+        verdicts = new byte[capacity];
+    }
+
+    private int find(long domainId) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(domainId) & mask);
+        while (keys[slot] != FREE && keys[slot] != domainId) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void put(long domainId, long fingerprint, long ts, byte verdict) {
+        int slot = find(domainId);
+        if (keys[slot] == FREE) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                grow();
+                slot = find(domainId);
+            }
+            keys[slot] = domainId;
+            size++;
+        }
+        fingerprints[slot] = fingerprint;
+        checked[slot] = ts;
+        verdicts[slot] = verdict;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldFingerprints = fingerprints;
+        long[] oldChecked = checked;
+        byte[] oldVerdicts = verdicts;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                fingerprints[slot] = oldFingerprints[i];
+                checked[slot] = oldChecked[i];
+                verdicts[slot] = oldVerdicts[i];
+            }
+        }
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        return x;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Daemon mode: every domain is checked once per window, at a flat rate.
+ *
+ * The window is cut into slots of tickMillis. A domain belongs to the slot
+ * hash(domain_id) mod slots, so the domains spread evenly over the window
+ * and a domain keeps its slot from window to window (and across restarts,
+ * the current slot follows the wall clock). Each tick the ids of the slots
+ * that became due are queued; a full queue blocks the scheduler, the lag is
+ * logged and exported as daemon_lag_slots.
+ *
+ * The ids are re-read every refreshMillis, so new domains join and deleted
+ * ones drop out. They are kept as one long[] ordered by slot (8 bytes per
+ * domain) plus the start of every slot.
+ *
+ * @author mieslingert
+ */
+public class WindowScheduler implements Runnable {
+
+    private final ConnectionPool pool;
+    private final LongRingBuffer out;
+    private final LogQueue logFileQ;
+    private final long tickMillis;
+    private final long refreshMillis;
+    private final int slots;
+    private final Metrics metrics = Metrics.get();
+    private volatile boolean keepOnRunning = true;
+    private volatile long lag = 0;
+
+    // ids ordered by slot, slot s is bySlot[slotStart[s]] to bySlot[slotStart[s + 1] - 1]
+    private long[] bySlot = new long[0];
+    private int[] slotStart;
+
+    public WindowScheduler(ConnectionPool pool, LongRingBuffer out, LogQueue logFileQ,
+            long windowMillis, long tickMillis, long refreshMillis) {
+        this.pool = pool;
+        this.out = out;
+        this.logFileQ = logFileQ;
+        this.tickMillis = tickMillis;
+        this.refreshMillis = refreshMillis;
+        this.slots = (int) Math.max(1, windowMillis / tickMillis);
+        this.slotStart = new int[slots + 1];
+        metrics.gauge("daemon_lag_slots", () -> lag);
+        metrics.gauge("daemon_domains", () -> bySlot.length);
+    }
+
+    /**
+     * @return the slot of a domain in [0, slots)
+     */
+    static int slot(long domainId, int slots) {
+        // splitmix64 finalizer, consecutive ids land far apart
+        long z = domainId + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (int) Long.remainderUnsigned(z, slots);
+    }
+
+    /**
+     * current slot by the wall clock
+     */
+    private long tick(long nowMillis) {
+        return nowMillis / tickMillis;
+    }
+
+    /**
+     * replace the schedule with these ids
+     */
+    void setIds(long[] ids, int length) {
+        int[] count = new int[slots + 1];
+        for (int i = 0; i < length; i++) {
+            count[slot(ids[i], slots) + 1]++;
+        }
+        for (int s = 0; s < slots; s++) {
+            count[s + 1] += count[s];
+        }
+        int[] start = Arrays.copyOf(count, count.length);
+        long[] sorted = new long[length];
+        for (int i = 0; i < length; i++) {
+            sorted[count[slot(ids[i], slots)]++] = ids[i];
+        }
+        synchronized (this) {
+            bySlot = sorted;
+            slotStart = start;
+        }
+    }
+
+    /**
+     * @return the ids due in slot s
+     */
+    synchronized long[] getSlot(int s) {
+        return Arrays.copyOfRange(bySlot, slotStart[s], slotStart[s + 1]);
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    private void refresh() throws SQLException {
+        long start = System.nanoTime();
+        long[] ids = new long[Math.max(1024, bySlot.length + bySlot.length / 8)];
+        int length = 0;
+        ConnectionPool.PooledConnection pc = pool.borrow();
+        try {
+            PreparedStatement st = pc.prepare("select id from domains");
+            // streamed, Connector/J would buffer all rows otherwise
+            st.setFetchSize(Integer.MIN_VALUE);
+            ResultSet rs = st.executeQuery();
+            while (rs.next()) {
+                if (length == ids.length) {
+                    ids = Arrays.copyOf(ids, ids.length * 2);
+                }
+                ids[length++] = rs.getLong(1);
+            }
+            rs.close();
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+        setIds(ids, length);
+        logFileQ.add("daemon: " + length + " domains, " + slots + " slots of " + tickMillis + "ms, read in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    public void run() {
+        long nextRefresh = 0;
+        // start with the slot that is due now, not with the whole window
+        long done = tick(System.currentTimeMillis()) - 1;
+        while (keepOnRunning) {
+            try {
+                long now = System.currentTimeMillis();
+                if (now >= nextRefresh) {
+                    refresh();
+                    nextRefresh = now + refreshMillis;
+                }
+                long due = tick(now);
+                if (due - done > slots) {
+                    // more than a window behind, skip what would be repeated anyway
+                    logFileQ.add("daemon: " + (due - done - slots) + " slots behind a full window, skipped");
+                    done = due - slots;
+                }
+                if (due - done > 1) {
+                    logFileQ.add("daemon: " + (due - done - 1) + " slots behind the schedule");
+                }
+                while (done < due && keepOnRunning) {
+                    done++;
+                    lag = due - done;
+                    long[] ids = getSlot((int) (done % slots));
+                    for (long id : ids) {
+                        out.put(id);
+                    }
+                    metrics.add("daemon_domains_queued", ids.length);
+                }
+                Thread.sleep(Math.max(1, (due + 1) * tickMillis - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                System.out.println("daemon scheduler: " + e.getMessage());
+                try {
+                    Thread.sleep(tickMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        keepOnRunning = false;
+    }
+}
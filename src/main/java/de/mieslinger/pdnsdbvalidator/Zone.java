@@ -0,0 +1,217 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One row of the domains table together with its records rows.
+ *
+ * Zones read by id only carry their SOA rows (and apex NS rows for the
+ * parent delegation check), the remaining records are loaded on demand. Zones from the streaming scan are complete.
+ *
+ * Records of giant zones are dropped after they are added to the
+ * fingerprint, the check reads them again page by page.
+ *
+ * @author mieslingert
+ */
+public class Zone {
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long domainId;
+    private final String name;
+    private final List<Row> soaRows = new ArrayList<>(1);
+    private final List<Row> nsRows = new ArrayList<>(0);
+    private List<Row> records = null;
+    // fingerprint of the dropped records
+    private boolean dropped = false;
+    private long droppedSum = 0;
+    private final List<String> findings = new ArrayList<>(0);
+    // System.nanoTime() when a worker took the zone
+    private long started = 0;
+
+    public Zone(long domainId, String name) {
+        this.domainId = domainId;
+        this.name = name;
+    }
+
+    public void addSOA(Row row) {
+        soaRows.add(row);
+    }
+
+    /**
+     * an NS row at the apex of the zone
+     */
+    public void addNS(Row row) {
+        nsRows.add(row);
+    }
+
+    public void addRecord(Row row) {
+        if ("SOA".equals(row.getType())) {
+            soaRows.add(row);
+        } else if ("NS".equals(row.getType()) && name.equalsIgnoreCase(row.getName())) {
+            nsRows.add(row);
+        }
+        if (dropped) {
+            droppedSum += hash(row);
+            return;
+        }
+        if (records == null) {
+            records = new ArrayList<>();
+        }
+        records.add(row);
+    }
+
+    /**
+     * Too many records to keep: only their fingerprint is kept, further
+     * records are only added to it. hasRecords() is false from now on.
+     */
+    public void dropRecords() {
+        if (records != null) {
+            for (Row r : records) {
+                droppedSum += hash(r);
+            }
+        }
+        records = null;
+        dropped = true;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    /**
+     * mark a zone without any records as complete
+     */
+    public void setNoRecords() {
+        if (records == null && !dropped) {
+            records = new ArrayList<>(0);
+        }
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public void setStarted(long started) {
+        this.started = started;
+    }
+
+    public boolean hasRecords() {
+        return records != null;
+    }
+
+    /**
+     * reasons this zone is broken, written as domainmetadata kind 'broken'
+     */
+    public void addFinding(String reason) {
+        findings.add(reason);
+    }
+
+    public List<String> getFindings() {
+        return findings;
+    }
+
+    /**
+     * Content fingerprint for incremental runs: the sum of a 64 bit FNV-1a
+     * hash per record, so the row order returned by the DB doesn't matter.
+     * The SOA record and with it the serial is part of the records.
+     * Only meaningful once the records are loaded.
+     */
+    public long fingerprint() {
+        long sum = hash(FNV_OFFSET, name) + droppedSum;
+        if (records != null) {
+            for (Row r : records) {
+                sum += hash(r);
+            }
+        }
+        return sum;
+    }
+
+    private static long hash(Row r) {
+        long h = FNV_OFFSET;
+        h = hash(h, r.name);
+        h = hash(h, r.type);
+        h = hash(h, r.content);
+        h = (h ^ r.ttl) * FNV_PRIME;
+        h = (h ^ r.prio) * FNV_PRIME;
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        if (s != null) {
+            for (int i = 0; i < s.length(); i++) {
+                h = (h ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // field separator
+        return (h ^ 0x1f) * FNV_PRIME;
+    }
+
+    public long getDomainId() {
+        return domainId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<Row> getSOARows() {
+        return soaRows;
+    }
+
+    public List<Row> getNSRows() {
+        return nsRows;
+    }
+
+    public List<Row> getRecords() {
+        return records;
+    }
+
+    public static class Row {
+
+        private final long id;
+        private final String name;
+        private final long ttl;
+        private final String type;
+        private final int prio;
+        private final String content;
+
+        public Row(long id, String name, long ttl, String type, int prio, String content) {
+            this.id = id;
+            this.name = name;
+            this.ttl = ttl;
+            this.type = type;
+            this.prio = prio;
+            this.content = content;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getTtl() {
+            return ttl;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getPrio() {
+            return prio;
+        }
+
+        public String getContent() {
+            return content;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ $Id: $
+ */
+package de.mieslinger.pdnsdbvalidator;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads domains and records in one sequential pass instead of three queries
+ * per domain. Pages are cut at domain_id boundaries (keyset pagination), each
+ * page is a streaming select of domains left join records ordered by
+ * domain_id, rows are grouped into complete Zones on the fly. A page is read
+ * to the end and its connection returned before its zones are queued.
+ *
+ * Zones with more than recordBudget records are only fingerprinted, the
+ * worker reads their records again page by page.
+ *
+ * @author mieslingert
+ */
+public class ZoneScanner {
+
+    private BlockingQueue<Zone> zoneQ;
+    private LogQueue logFileQ;
+    private int pageSize;
+    private int recordBudget;
+    private Checkpoint checkpoint;
+    private long startAfter;
+
+    private ZoneScanner() {
+    }
+
+    public ZoneScanner(BlockingQueue<Zone> zoneQ, LogQueue logFileQ, int pageSize, int recordBudget, Checkpoint checkpoint, long startAfter) {
+        this.zoneQ = zoneQ;
+        this.logFileQ = logFileQ;
+        this.pageSize = pageSize;
+        this.recordBudget = recordBudget;
+        this.checkpoint = checkpoint;
+        this.startAfter = startAfter;
+    }
+
+    /**
+     * @return number of zones queued
+     */
+    public long scan() throws Exception {
+        long zones = 0;
+        long lastId = startAfter;
+        while (true) {
+            long pageEnd = pageEnd(lastId);
+            if (pageEnd <= lastId) {
+                break;
+            }
+            // the page is read completely before the first zone is queued, a
+            // full queue must not stall the stream (net_write_timeout)
+            List<Zone> page = readPage(lastId, pageEnd);
+            for (Zone zone : page) {
+                checkpoint.dispatched(zone.getDomainId());
+                zoneQ.put(zone);
+                zones++;
+            }
+            logFileQ.add("scanned domain_ids " + (lastId + 1) + " to " + pageEnd);
+            lastId = pageEnd;
+        }
+        return zones;
+    }
+
+    /**
+     * @return the last domain_id of the page after lastId
+     */
+    private long pageEnd(long lastId) throws Exception {
+        ConnectionPool.PooledConnection pc = DataBase.getReadPool().borrow();
+        try {
+            PreparedStatement getPageEnd = pc.prepare("select max(id) from "
+                    + "(select id from domains where id > ? order by id limit ?) p");
+            getPageEnd.setLong(1, lastId);
+            getPageEnd.setInt(2, pageSize);
+            ResultSet rsEnd = getPageEnd.executeQuery();
+            long pageEnd = 0;
+            if (rsEnd.next()) {
+                pageEnd = rsEnd.getLong(1);
+            }
+            rsEnd.close();
+            return pageEnd;
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+
+    /**
+     * the complete zones with ids in (lastId, pageEnd]
+     */
+    private List<Zone> readPage(long lastId, long pageEnd) throws Exception {
+        List<Zone> page = new ArrayList<>(pageSize);
+        ConnectionPool.PooledConnection pc = DataBase.getReadPool().borrow();
+        try {
+            PreparedStatement getPage = pc.prepare("select d.id, d.name, r.id, r.name, r.ttl, r.type, r.prio, r.content "
+                    + "from domains d left join records r on r.domain_id = d.id "
+                    + "where d.id > ? and d.id <= ? "
+                    + "order by d.id");
+            // MySQL Connector/J only streams with this magic value
+            getPage.setFetchSize(Integer.MIN_VALUE);
+            getPage.setLong(1, lastId);
+            getPage.setLong(2, pageEnd);
+            ResultSet rs = getPage.executeQuery();
+            Zone zone = null;
+            while (rs.next()) {
+                long domainId = rs.getLong(1);
+                if (zone == null || zone.getDomainId() != domainId) {
+                    if (zone != null) {
+                        zone.setNoRecords();
+                        page.add(zone);
+                    }
+                    zone = new Zone(domainId, rs.getString(2));
+                }
+                long recordId = rs.getLong(3);
+                if (!rs.wasNull()) {
+                    zone.addRecord(new Zone.Row(recordId, rs.getString(4), rs.getLong(5), rs.getString(6), rs.getInt(7), rs.getString(8)));
+                    if (zone.hasRecords() && zone.getRecords().size() > recordBudget) {
+                        zone.dropRecords();
+                    }
+                }
+            }
+            rs.close();
+            if (zone != null) {
+                zone.setNoRecords();
+                page.add(zone);
+            }
+            return page;
+        } catch (SQLException e) {
+            pc.invalidate();
+            throw e;
+        } finally {
+            pc.release();
+        }
+    }
+}
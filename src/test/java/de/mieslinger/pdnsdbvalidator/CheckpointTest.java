@@ -0,0 +1,62 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Checkpoint.
+ */
+public class CheckpointTest
+    extends TestCase
+{
+    public CheckpointTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CheckpointTest.class );
+    }
+
+    public void testResumeAfterLowestUnfinished() throws Exception
+    {
+        File file = File.createTempFile( "pdnsdbvalidator", ".checkpoint" );
+        try
+        {
+            Checkpoint cp = new Checkpoint( file.getPath(), 1000 );
+            for ( long id = 10; id <= 50; id += 10 )
+            {
+                cp.dispatched( id );
+            }
+            cp.finished( 10, Collections.<String>emptyList(), true );
+            cp.finished( 30, Arrays.asList( "no SOA" ), false );
+            cp.skipped( 40 );
+            // 20 still in flight
+            assertEquals( 19, cp.getResumeAfter() );
+
+            cp.committed( Arrays.asList( 10L ) );
+            cp.write();
+
+            Checkpoint resumed = new Checkpoint( file.getPath(), 1000 );
+            assertEquals( 19, resumed.load() );
+            assertEquals( 1, resumed.getSavedVerdicts().size() );
+            Checkpoint.Verdict v = resumed.getSavedVerdicts().get( 0 );
+            assertEquals( 30, v.getDomainId() );
+            assertFalse( v.isConclusive() );
+            assertEquals( Arrays.asList( "no SOA" ), v.getFindings() );
+
+            cp.finished( 20, Collections.<String>emptyList(), false );
+            cp.finished( 50, Collections.<String>emptyList(), false );
+            assertEquals( 50, cp.getResumeAfter() );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+}
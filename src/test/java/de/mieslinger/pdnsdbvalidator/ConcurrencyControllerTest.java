@@ -0,0 +1,143 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for ConcurrencyController.
+ */
+public class ConcurrencyControllerTest
+    extends TestCase
+{
+    private final Metrics metrics = new Metrics();
+    private final AtomicInteger timeout = new AtomicInteger();
+    private ConcurrencyController.Limit window;
+    private ConcurrencyController.Limit workers;
+    private ConcurrencyController controller;
+
+    public ConcurrencyControllerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ConcurrencyControllerTest.class );
+    }
+
+    @Override
+    protected void setUp()
+    {
+        window = new ConcurrencyController.Limit( "dns_window", 64, 16, 2000, n -> { } );
+        workers = new ConcurrencyController.Limit( "workers", 20, 4, 100, n -> { } );
+        controller = new ConcurrencyController( metrics, 1000, 0.01, window, workers,
+                2000, 10000, ms -> timeout.set( ms ), () -> 0, () -> 0 );
+    }
+
+    public void testDnsWindowGrowsWhenFullAndShrinksOnTimeouts()
+    {
+        controller.adjust( 1000, 0, 20000, 50000, 0, 0, 64, 0 );
+        assertEquals( 72, window.get() );
+        // fast answers don't shorten the configured timeout
+        assertEquals( 0, timeout.get() );
+
+        // rate limited: 5% timeouts
+        controller.adjust( 1000, 50, 20000, 800000, 0, 0, 72, 0 );
+        assertEquals( 54, window.get() );
+        assertEquals( 3200, timeout.get() );
+
+        // recursor queues: latency far above the baseline
+        controller.adjust( 1000, 0, 90000, 400000, 0, 0, 54, 0 );
+        assertEquals( 40, window.get() );
+        assertEquals( 1, metrics.getCount( "limit_increases{limit=\"dns_window\"}" ) );
+        assertEquals( 2, metrics.getCount( "limit_decreases{limit=\"dns_window\"}" ) );
+    }
+
+    public void testSlowAnswerArrivesAfterFastOnes() throws Exception
+    {
+        // a server that answers after 400ms
+        final DatagramSocket server = new DatagramSocket( new InetSocketAddress( InetAddress.getByName( "127.0.0.1" ), 0 ) );
+        Thread t = new Thread( () ->
+        {
+            try
+            {
+                byte[] buf = new byte[512];
+                DatagramPacket in = new DatagramPacket( buf, buf.length );
+                server.receive( in );
+                Thread.sleep( 400 );
+                Message answer = new Message( Arrays.copyOf( in.getData(), in.getLength() ) );
+                answer.getHeader().setFlag( Flags.QR );
+                byte[] wire = answer.toWire();
+                server.send( new DatagramPacket( wire, wire.length, in.getSocketAddress() ) );
+            }
+            catch ( Exception e )
+            {
+            }
+        } );
+        t.setDaemon( true );
+        t.start();
+
+        AsyncResolver resolver = new AsyncResolver( "127.0.0.1", 10, 1000 );
+        resolver.setPort( server.getLocalPort() );
+        ConcurrencyController c = new ConcurrencyController( metrics, 1000, 0.01, window, workers,
+                1000, 10000, ms -> resolver.setTimeout( 0, ms ), () -> 0, () -> 0 );
+        try
+        {
+            // plenty of answers within 5ms
+            c.adjust( 1000, 0, 2000, 5000, 0, 0, 0, 0 );
+            assertEquals( 1000, resolver.getTimeoutMillis() );
+
+            Message response = resolver.query( Name.fromString( "slow.example.de." ), Type.SOA ).get();
+            assertTrue( response.getHeader().getFlag( Flags.QR ) );
+        }
+        finally
+        {
+            resolver.shutdown();
+            server.close();
+        }
+    }
+
+    public void testWindowStaysBelowTheMessageIds() throws Exception
+    {
+        AsyncResolver resolver = new AsyncResolver( "127.0.0.1", 100000, 1000 );
+        try
+        {
+            assertEquals( AsyncResolver.MAX_IN_FLIGHT, resolver.getMaxInFlight() );
+            resolver.setMaxInFlight( 10 );
+            assertEquals( 10, resolver.getMaxInFlight() );
+            resolver.setMaxInFlight( 0x10000 );
+            assertTrue( resolver.getMaxInFlight() < 0x10000 );
+        }
+        finally
+        {
+            resolver.shutdown();
+        }
+    }
+
+    public void testWorkersFollowDbLatencyAndBacklog()
+    {
+        controller.adjust( 0, 0, 0, 0, 1000, 0, 0, 500 );
+        assertEquals( 24, workers.get() );
+        controller.adjust( 0, 0, 0, 0, 1100, 0, 0, 0 );
+        assertEquals( 24, workers.get() );
+        controller.adjust( 0, 0, 0, 0, 5000, 0, 0, 500 );
+        assertEquals( 18, workers.get() );
+
+        controller.adjust( 0, 0, 0, 0, 0, 2000, 0, 0 );
+        controller.adjust( 0, 0, 0, 0, 0, 9000, 0, 0 );
+        assertEquals( 50, controller.getCommitPauseMillis() );
+        controller.adjust( 0, 0, 0, 0, 0, 2000, 0, 0 );
+        assertEquals( 25, controller.getCommitPauseMillis() );
+    }
+}
@@ -0,0 +1,146 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for DelegationResolver.
+ */
+public class DelegationResolverTest
+    extends TestCase
+{
+    public DelegationResolverTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DelegationResolverTest.class );
+    }
+
+    public void testParentServersLookedUpOnce() throws Exception
+    {
+        StubRecursor recursor = new StubRecursor();
+        Name ns1 = Name.fromString( "ns1.hoster.net." );
+        List<InetSocketAddress> sentTo = new CopyOnWriteArrayList<>();
+        List<Message> sent = new CopyOnWriteArrayList<>();
+        DelegationResolver dr = new DelegationResolver( recursor, ( query, to ) ->
+        {
+            sentTo.add( to );
+            sent.add( query );
+            return CompletableFuture.completedFuture( referral( query.getQuestion().getName(), ns1 ) );
+        }, RecursorPool.WEIGHTED, 10, 1000, 0, 5, 10000, 5353, 3600, 30, new Metrics() );
+
+        Name a = Name.fromString( "example.de." );
+        Message answer = dr.queryDelegation( a ).join();
+        dr.queryDelegation( Name.fromString( "other.de." ) ).join();
+
+        assertEquals( 1, recursor.queries.size() );
+        assertEquals( "de.", recursor.queries.get( 0 ).getQuestion().getName().toString() );
+        assertEquals( 2, sentTo.size() );
+        // the glue address
+        assertEquals( new InetSocketAddress( InetAddress.getByName( "192.0.2.1" ), 5353 ), sentTo.get( 0 ) );
+        assertEquals( Type.NS, sent.get( 0 ).getQuestion().getType() );
+        assertFalse( sent.get( 0 ).getHeader().getFlag( Flags.RD ) );
+        assertTrue( DelegationResolver.delegatedTo( answer, a ).contains( Name.fromString( "NS1.hoster.net." ) ) );
+    }
+
+    public void testParentWithoutZoneCutUsesTheNextOneUp() throws Exception
+    {
+        StubRecursor recursor = new StubRecursor();
+        Name ns1 = Name.fromString( "ns1.hoster.net." );
+        List<InetSocketAddress> sentTo = new CopyOnWriteArrayList<>();
+        DelegationResolver dr = new DelegationResolver( recursor, ( query, to ) ->
+        {
+            sentTo.add( to );
+            return CompletableFuture.completedFuture( referral( query.getQuestion().getName(), ns1 ) );
+        }, RecursorPool.WEIGHTED, 10, 1000, 0, 5, 10000, 53, 3600, 30, new Metrics() );
+
+        dr.queryDelegation( Name.fromString( "shop.sub.example.com." ) ).join();
+
+        // NS sub.example.com. is empty, NS example.com. has no glue, A ns.example.net.
+        assertEquals( 3, recursor.queries.size() );
+        assertEquals( new InetSocketAddress( InetAddress.getByName( "198.51.100.7" ), 53 ), sentTo.get( 0 ) );
+        assertSame( dr.serversOf( Name.fromString( "sub.example.com." ) ).join(),
+                dr.serversOf( Name.fromString( "example.com." ) ).join() );
+    }
+
+    public void testNotDelegated() throws Exception
+    {
+        Name zone = Name.fromString( "gone.de." );
+        Message nx = Message.newQuery( Record.newRecord( zone, Type.NS, DClass.IN ) );
+        nx.getHeader().setRcode( Rcode.NXDOMAIN );
+        assertTrue( DelegationResolver.delegatedTo( nx, zone ).isEmpty() );
+
+        // an NS set of another name is no delegation of this zone
+        assertTrue( DelegationResolver.delegatedTo( referral( Name.fromString( "de." ), Name.fromString( "a.nic.de." ) ), zone ).isEmpty() );
+    }
+
+    private static Message referral( Name zone, Name server )
+    {
+        Message m = Message.newQuery( Record.newRecord( zone, Type.NS, DClass.IN ) );
+        m.getHeader().setFlag( Flags.QR );
+        m.addRecord( new NSRecord( zone, DClass.IN, 86400, server ), Section.AUTHORITY );
+        return m;
+    }
+
+    /**
+     * knows the NS sets of de. (with glue) and example.com. (without)
+     */
+    private static class StubRecursor implements DnsClient
+    {
+        private final List<Message> queries = new CopyOnWriteArrayList<>();
+
+        public CompletableFuture<Message> sendAsync( Message query )
+        {
+            queries.add( query );
+            Record q = query.getQuestion();
+            Message m = Message.newQuery( q );
+            m.getHeader().setFlag( Flags.QR );
+            try
+            {
+                String name = q.getName().toString();
+                if ( q.getType() == Type.NS && name.equals( "de." ) )
+                {
+                    Name ns = Name.fromString( "a.nic.de." );
+                    m.addRecord( new NSRecord( q.getName(), DClass.IN, 86400, ns ), Section.ANSWER );
+                    m.addRecord( new ARecord( ns, DClass.IN, 86400, InetAddress.getByName( "192.0.2.1" ) ), Section.ADDITIONAL );
+                }
+                else if ( q.getType() == Type.NS && name.equals( "example.com." ) )
+                {
+                    m.addRecord( new NSRecord( q.getName(), DClass.IN, 3600, Name.fromString( "ns.example.net." ) ), Section.ANSWER );
+                }
+                else if ( q.getType() == Type.A && name.equals( "ns.example.net." ) )
+                {
+                    m.addRecord( new ARecord( q.getName(), DClass.IN, 3600, InetAddress.getByName( "198.51.100.7" ) ), Section.ANSWER );
+                }
+            }
+            catch ( Exception e )
+            {
+                throw new IllegalStateException( e );
+            }
+            return CompletableFuture.completedFuture( m );
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for DomainIdIndex.
+ */
+public class DomainIdIndexTest
+    extends TestCase
+{
+    public DomainIdIndexTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DomainIdIndexTest.class );
+    }
+
+    public void testEveryIdIsTakenOnce() throws Exception
+    {
+        final int n = 100000;
+        final DomainIdIndex index = new DomainIdIndex( 64, null );
+        for ( int i = 1; i <= n; i++ )
+        {
+            index.add( 2 * i );
+        }
+        assertEquals( LongRingBuffer.EMPTY, index.poll( 1, TimeUnit.MILLISECONDS ) );
+        index.close();
+        assertEquals( n, index.size() );
+
+        final AtomicIntegerArray seen = new AtomicIntegerArray( n + 1 );
+        Thread[] threads = new Thread[8];
+        for ( int t = 0; t < threads.length; t++ )
+        {
+            final boolean slow = t == 0;
+            threads[t] = new Thread( () -> {
+                try
+                {
+                    long id;
+                    while ( ( id = index.poll( 0, TimeUnit.MILLISECONDS ) ) != LongRingBuffer.EMPTY )
+                    {
+                        seen.incrementAndGet( (int) ( id / 2 ) );
+                        if ( slow )
+                        {
+                            Thread.sleep( 1 );
+                        }
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                }
+            } );
+            threads[t].start();
+        }
+        for ( Thread t : threads )
+        {
+            t.join();
+        }
+        for ( int i = 1; i <= n; i++ )
+        {
+            assertEquals( 1, seen.get( i ) );
+        }
+        assertTrue( index.isDrained() );
+        assertEquals( 0, index.size() );
+    }
+
+    public void testStragglerChunkIsStolen() throws Exception
+    {
+        final DomainIdIndex index = new DomainIdIndex( 1000, null );
+        for ( int i = 1; i <= 1000; i++ )
+        {
+            index.add( i );
+        }
+        index.close();
+        final CountDownLatch claimed = new CountDownLatch( 1 );
+        Thread owner = new Thread( () -> {
+            try
+            {
+                // takes the whole range as its chunk
+                index.poll( 0, TimeUnit.MILLISECONDS );
+                claimed.countDown();
+                Thread.sleep( 200 );
+            }
+            catch ( InterruptedException e )
+            {
+            }
+        } );
+        owner.start();
+        claimed.await();
+        assertEquals( 501, index.poll( 0, TimeUnit.MILLISECONDS ) );
+        owner.join();
+    }
+
+    public void testChunksAreDispatchedInOrder() throws Exception
+    {
+        File file = File.createTempFile( "pdnsdbvalidator", ".checkpoint" );
+        try
+        {
+            Checkpoint cp = new Checkpoint( file.getPath(), 1000 );
+            DomainIdIndex index = new DomainIdIndex( 4, cp );
+            for ( int i = 1; i <= 10; i++ )
+            {
+                index.add( i * 10 );
+            }
+            index.close();
+            assertEquals( 10, index.poll( 0, TimeUnit.MILLISECONDS ) );
+            // 10 to 40 in flight
+            assertEquals( 9, cp.getResumeAfter() );
+            cp.skipped( 10 );
+            cp.skipped( 20 );
+            assertEquals( 29, cp.getResumeAfter() );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testPriorityIdsFirstAndOnce() throws Exception
+    {
+        DomainIdIndex index = new DomainIdIndex( 4, null );
+        index.setPriority( new long[] { 70, 5, 33 } );
+        // handed out before the ids are loaded
+        assertEquals( 70, index.poll( 0, TimeUnit.MILLISECONDS ) );
+        for ( int i = 1; i <= 100; i++ )
+        {
+            index.add( i );
+        }
+        index.close();
+        assertEquals( 99, index.size() );
+        assertEquals( 5, index.poll( 0, TimeUnit.MILLISECONDS ) );
+        assertEquals( 33, index.poll( 0, TimeUnit.MILLISECONDS ) );
+
+        int taken = 0;
+        long id;
+        while ( ( id = index.poll( 0, TimeUnit.MILLISECONDS ) ) != LongRingBuffer.EMPTY )
+        {
+            assertTrue( id != 5 && id != 33 && id != 70 );
+            taken++;
+        }
+        assertEquals( 97, taken );
+        assertTrue( index.isDrained() );
+    }
+}
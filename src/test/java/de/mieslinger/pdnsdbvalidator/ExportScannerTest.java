@@ -0,0 +1,100 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for ExportScanner.
+ */
+public class ExportScannerTest
+    extends TestCase
+{
+    private static final String DOMAIN_COLUMNS = "id,name,master,last_check,type,notified_serial,account";
+    private static final String RECORD_COLUMNS = "id,domain_id,name,type,content,ttl,prio,disabled,ordername,auth";
+
+    public ExportScannerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ExportScannerTest.class );
+    }
+
+    public void testZonesAreJoinedWithTheirRecords() throws Exception
+    {
+        File domains = TsvReaderTest.write( "1\texample.com\t\\N\t\\N\tNATIVE\t\\N\t\\N\n"
+                + "2\tempty.example\t\\N\t\\N\tNATIVE\t\\N\t\\N\n"
+                + "5\texample.net\t\\N\t\\N\tNATIVE\t\\N\t\\N\n" );
+        File records = TsvReaderTest.write( "10\t1\texample.com\tSOA\tns1.example.com hostmaster.example.com 1 7200 900 604800 300\t3600\t0\t0\t\\N\t1\n"
+                + "11\t1\twww.example.com\tA\t192.0.2.1\t300\t0\t0\t\\N\t1\n"
+                + "12\t3\torphan.example\tA\t192.0.2.2\t300\t0\t0\t\\N\t1\n"
+                + "13\t5\texample.net\tMX\tmx.example.net\t300\t10\t0\t\\N\t1\n" );
+        File cp = File.createTempFile( "pdnsdbvalidator", ".checkpoint" );
+        try
+        {
+            LinkedBlockingQueue<Zone> zoneQ = new LinkedBlockingQueue<>();
+            ExportScanner scanner = new ExportScanner( zoneQ, new LogQueue( 100, "drop" ), domains.getPath(), records.getPath(),
+                    DOMAIN_COLUMNS, RECORD_COLUMNS, 64, false, new Checkpoint( cp.getPath(), 1000 ), 0 );
+            assertEquals( 3, scanner.scan() );
+            assertEquals( 1, scanner.getOrphans() );
+
+            Zone z = zoneQ.take();
+            assertEquals( 1, z.getDomainId() );
+            assertEquals( "example.com", z.getName() );
+            assertEquals( 2, z.getRecords().size() );
+            assertEquals( 1, z.getSOARows().size() );
+
+            z = zoneQ.take();
+            assertEquals( "empty.example", z.getName() );
+            assertTrue( z.hasRecords() );
+            assertEquals( 0, z.getRecords().size() );
+
+            z = zoneQ.take();
+            Zone.Row mx = z.getRecords().get( 0 );
+            assertEquals( 13, mx.getId() );
+            assertEquals( "MX", mx.getType() );
+            assertEquals( 10, mx.getPrio() );
+            assertEquals( 300, mx.getTtl() );
+        }
+        finally
+        {
+            domains.delete();
+            records.delete();
+            cp.delete();
+        }
+    }
+
+    public void testHeaderRowAndUnsortedRecords() throws Exception
+    {
+        File domains = TsvReaderTest.write( "name\tid\nexample.com\t1\nexample.net\t2\n" );
+        File records = TsvReaderTest.write( "1\t2\texample.net\tA\t192.0.2.1\t300\t0\n"
+                + "2\t1\texample.com\tA\t192.0.2.2\t300\t0\n" );
+        File cp = File.createTempFile( "pdnsdbvalidator", ".checkpoint" );
+        try
+        {
+            ExportScanner scanner = new ExportScanner( new LinkedBlockingQueue<Zone>(), new LogQueue( 100, "drop" ),
+                    domains.getPath(), records.getPath(), DOMAIN_COLUMNS, RECORD_COLUMNS, 64, false, new Checkpoint( cp.getPath(), 1000 ), 0 );
+            try
+            {
+                scanner.scan();
+                fail( "records are not ordered by domain_id" );
+            }
+            catch ( IOException e )
+            {
+                assertTrue( e.getMessage().contains( "line 2" ) );
+            }
+        }
+        finally
+        {
+            domains.delete();
+            records.delete();
+            cp.delete();
+        }
+    }
+}
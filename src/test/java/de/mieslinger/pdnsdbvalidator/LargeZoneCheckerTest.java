@@ -0,0 +1,50 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.ArrayList;
+import java.util.List;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for LargeZoneChecker.
+ */
+public class LargeZoneCheckerTest
+    extends TestCase
+{
+    public LargeZoneCheckerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LargeZoneCheckerTest.class );
+    }
+
+    public void testFirstInvalidRowWins() throws Exception
+    {
+        LargeZoneChecker checker = new LargeZoneChecker( null, 100, 4, 16, new Metrics() );
+        try
+        {
+            List<Zone.Row> rows = new ArrayList<>();
+            for ( int i = 0; i < 20000; i++ )
+            {
+                rows.add( new Zone.Row( i, "host" + i + ".example.com", 300, "A", 0, "192.0.2." + ( i % 250 ) ) );
+            }
+            assertNull( checker.firstInvalid( rows ) );
+
+            rows.set( 15000, new Zone.Row( 15000, "late.example.com", 300, "LOC", 0, "x" ) );
+            rows.set( 7000, new Zone.Row( 7000, "mx.example.com", 300, "SRV", 0, "bogus" ) );
+            String expected = new RecordParser( null, 0 ).parse( "mx.example.com", 300, "SRV", 0, "bogus" ).getMessage();
+            for ( int run = 0; run < 10; run++ )
+            {
+                assertEquals( expected, checker.firstInvalid( rows ) );
+            }
+        }
+        finally
+        {
+            checker.shutdown();
+        }
+    }
+}
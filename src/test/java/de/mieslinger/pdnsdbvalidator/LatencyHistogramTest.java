@@ -0,0 +1,46 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for LatencyHistogram.
+ */
+public class LatencyHistogramTest
+    extends TestCase
+{
+    public LatencyHistogramTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LatencyHistogramTest.class );
+    }
+
+    public void testBucketsCoverValues()
+    {
+        for ( long v = 0; v < 1L << 38; v = v * 3 / 2 + 1 )
+        {
+            int i = LatencyHistogram.index( v );
+            assertTrue( v + " below bucket " + i, LatencyHistogram.lowest( i ) <= v );
+            assertTrue( v + " above bucket " + i, LatencyHistogram.lowest( i + 1 ) > v );
+        }
+    }
+
+    public void testPercentilesWithinPrecision()
+    {
+        LatencyHistogram h = new LatencyHistogram();
+        for ( int v = 1; v <= 10000; v++ )
+        {
+            h.record( v );
+        }
+        assertEquals( 10000, h.getCount() );
+        assertEquals( 10000, h.getMaxMicros() );
+        assertEquals( 5000, h.percentile( 50 ), 5000 * 0.07 );
+        assertEquals( 9900, h.percentile( 99 ), 9900 * 0.07 );
+        assertEquals( 0, new LatencyHistogram().percentile( 99 ) );
+    }
+}
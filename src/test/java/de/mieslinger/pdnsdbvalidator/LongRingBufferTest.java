@@ -0,0 +1,73 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for LongRingBuffer.
+ */
+public class LongRingBufferTest
+    extends TestCase
+{
+    public LongRingBufferTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LongRingBufferTest.class );
+    }
+
+    public void testFifoAcrossWrapAround() throws Exception
+    {
+        LongRingBuffer buf = new LongRingBuffer( 3 );
+        for ( long i = 1; i <= 10; i++ )
+        {
+            buf.put( i );
+            buf.put( i + 100 );
+            assertEquals( i, buf.poll() );
+            assertEquals( i + 100, buf.poll() );
+        }
+        assertEquals( LongRingBuffer.EMPTY, buf.poll() );
+        assertEquals( 0, buf.size() );
+    }
+
+    public void testCloseDrainsRemainingValues() throws Exception
+    {
+        LongRingBuffer buf = new LongRingBuffer( 4 );
+        buf.put( 7 );
+        buf.close();
+        assertFalse( buf.isDrained() );
+        assertEquals( 7, buf.poll( 1, TimeUnit.SECONDS ) );
+        assertTrue( buf.isDrained() );
+        // must not wait for the timeout once closed
+        long start = System.nanoTime();
+        assertEquals( LongRingBuffer.EMPTY, buf.poll( 10, TimeUnit.SECONDS ) );
+        assertTrue( System.nanoTime() - start < TimeUnit.SECONDS.toNanos( 1 ) );
+    }
+
+    public void testPutBlocksWhileFull() throws Exception
+    {
+        final LongRingBuffer buf = new LongRingBuffer( 1 );
+        buf.put( 1 );
+        Thread producer = new Thread( () -> {
+            try
+            {
+                buf.put( 2 );
+            }
+            catch ( InterruptedException e )
+            {
+            }
+        } );
+        producer.start();
+        producer.join( 200 );
+        assertTrue( producer.isAlive() );
+        assertEquals( 1, buf.poll() );
+        producer.join( 1000 );
+        assertFalse( producer.isAlive() );
+        assertEquals( 2, buf.poll() );
+    }
+}
@@ -0,0 +1,44 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Metrics.
+ */
+public class MetricsTest
+    extends TestCase
+{
+    public MetricsTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MetricsTest.class );
+    }
+
+    public void testPrometheusText() throws Exception
+    {
+        Metrics metrics = new Metrics();
+        metrics.count( Metrics.DOMAINS_CHECKED );
+        metrics.count( "dns_rcode{rcode=\"NXDOMAIN\"}" );
+        metrics.count( "dns_rcode{rcode=\"NOERROR\"}" );
+        metrics.gauge( "zone_queue", () -> 7 );
+        metrics.stage( Metrics.DNS_LOOKUP ).record( 1500 );
+
+        String text = metrics.toPrometheus();
+        assertTrue( text.contains( "pdnsdbvalidator_domains_checked_total 1\n" ) );
+        assertTrue( text.contains( "pdnsdbvalidator_dns_rcode_total{rcode=\"NXDOMAIN\"} 1\n" ) );
+        assertEquals( text.indexOf( "# TYPE pdnsdbvalidator_dns_rcode_total" ),
+                text.lastIndexOf( "# TYPE pdnsdbvalidator_dns_rcode_total" ) );
+        assertTrue( text.contains( "pdnsdbvalidator_zone_queue 7\n" ) );
+        assertTrue( text.contains( "pdnsdbvalidator_dns_lookup_seconds_count 1\n" ) );
+
+        assertEquals( 1L, metrics.getAttribute( "domains_checked" ) );
+        assertEquals( 7L, metrics.getAttribute( "zone_queue" ) );
+        assertEquals( 1L, metrics.getAttribute( "dns_rcode_rcode_NXDOMAIN" ) );
+    }
+}
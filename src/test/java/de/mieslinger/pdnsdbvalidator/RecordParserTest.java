@@ -0,0 +1,168 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.MXRecord;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.NSRecord;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+
+/**
+ * Unit test for RecordParser.
+ */
+public class RecordParserTest
+    extends TestCase
+{
+    public RecordParserTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RecordParserTest.class );
+    }
+
+    public void testSOAFieldsAndNameCache() throws Exception
+    {
+        RecordParser parser = new RecordParser( new TxtClient(), 100 );
+
+        ResourceRecord rr = parser.parse( "example.com", 3600, "SOA", 0,
+                "ns1.example.net hostmaster.example.net 2019010101 10800 3600 604800 300" );
+        assertEquals( 0, rr.getRc() );
+        assertTrue( rr.isSOA() );
+        SOARecord soa = (SOARecord) rr.getRecord();
+        assertEquals( Name.fromString( "ns1.example.net." ), soa.getHost() );
+        assertEquals( 2019010101L, soa.getSerial() );
+        assertEquals( 300L, soa.getMinimum() );
+
+        rr = parser.parse( "example.com", 3600, "NS", 0, "ns1.example.net." );
+        assertTrue( rr.isNS() );
+        NSRecord ns = (NSRecord) rr.getRecord();
+        assertSame( soa.getName(), ns.getName() );
+
+        rr = parser.parse( "example.com", 3600, "MX", 10, "mx.example.net" );
+        assertEquals( 10, ( (MXRecord) rr.getRecord() ).getPriority() );
+        assertFalse( rr.isNS() );
+    }
+
+    public void testInvalidContent() throws Exception
+    {
+        RecordParser parser = new RecordParser( new TxtClient(), 100 );
+
+        assertEquals( 1, parser.parse( "example.com", 3600, "SOA", 0, "ns1.example.net hostmaster.example.net 1 2" ).getRc() );
+        assertEquals( 1, parser.parse( "example.com", 3600, "SOA", 0, "ns1 hostmaster x 1 2 3 4" ).getRc() );
+        assertEquals( 1, parser.parse( "example.com.", 3600, "A", 0, "192.0.2.1" ).getRc() );
+        assertEquals( 1, parser.parse( "example.com", 3600, "NAPTR", 0, "x" ).getRc() );
+        assertEquals( 0, parser.parse( "example.com", 3600, "A", 0, "192.0.2.1" ).getRc() );
+    }
+
+    public void testOutOfRangeNumbersAreNotCut() throws Exception
+    {
+        RecordParser parser = new RecordParser( new TxtClient(), 100 );
+
+        assertEquals( 0, parser.parse( "_sip._tcp.example.com", 3600, "SRV", 10, "5 5060 sip.example.com" ).getRc() );
+        // 2^32 + 80
+        assertEquals( 1, parser.parse( "_sip._tcp.example.com", 3600, "SRV", 10, "5 4294967376 sip.example.com" ).getRc() );
+        assertEquals( 1, parser.parse( "_sip._tcp.example.com", 3600, "SRV", 10, "65536 80 sip.example.com" ).getRc() );
+        assertEquals( 1, parser.parse( "_sip._tcp.example.com", 3600, "SRV", 10, "-1 80 sip.example.com" ).getRc() );
+        assertEquals( 0, parser.parse( "example.com", 3600, "CAA", 0, "0 issue \"ca.example.net\"" ).getRc() );
+        assertEquals( 1, parser.parse( "example.com", 3600, "CAA", 0, "256 issue \"ca.example.net\"" ).getRc() );
+    }
+
+    public void testInterruptedTXTLookupIsNoFinding() throws Exception
+    {
+        RecordParser parser = new RecordParser( new SilentClient(), 100 );
+
+        Thread.currentThread().interrupt();
+        try
+        {
+            parser.parse( "example.com", 3600, "TXT", 0, "v=spf1 -all" );
+            fail( "interrupted" );
+        }
+        catch ( CancellationException e )
+        {
+            // the flag is set again
+            assertTrue( Thread.interrupted() );
+        }
+    }
+
+    public void testQuotedTXT() throws Exception
+    {
+        RecordParser parser = new RecordParser( new TxtClient(), 100 );
+
+        ResourceRecord rr = parser.parse( "example.com", 3600, "TXT", 0, "\"v=DKIM1; k=rsa; \" \"p=MIGf\" tail" );
+        assertEquals( 0, rr.getRc() );
+        List strings = ( (TXTRecord) rr.getRecord() ).getStrings();
+        assertEquals( 3, strings.size() );
+        assertEquals( "v=DKIM1; k=rsa; ", strings.get( 0 ) );
+        assertEquals( "p=MIGf", strings.get( 1 ) );
+        assertEquals( "tail", strings.get( 2 ) );
+
+        StringBuilder longTxt = new StringBuilder();
+        for ( int i = 0; i < 300; i++ )
+        {
+            longTxt.append( 'x' );
+        }
+        rr = parser.parse( "example.com", 3600, "TXT", 0, longTxt.toString() );
+        assertEquals( 2, ( (TXTRecord) rr.getRecord() ).getStrings().size() );
+    }
+
+    public void testSOAComparison() throws Exception
+    {
+        RecordParser parser = new RecordParser( new TxtClient(), 0 );
+        String content = "ns1.example.net hostmaster.example.net 2019010101 10800 3600 604800 300";
+        SOARecord answer = new SOARecord( Name.fromString( "example.com." ), DClass.IN, 3600,
+                Name.fromString( "ns1.example.net." ), Name.fromString( "hostmaster.example.net." ),
+                2019010101L, 10800, 3600, 604800, 300 );
+
+        assertEquals( 7, parser.fieldCount( content ) );
+        assertEquals( content.split( " " ).length, parser.fieldCount( content + "  " ) );
+        assertEquals( "a  b".split( " " ).length, parser.fieldCount( "a  b" ) );
+        assertTrue( parser.soaMatches( content, answer ) );
+        assertFalse( parser.soaMatches( content.replace( "2019010101", "2019010102" ), answer ) );
+        assertFalse( parser.soaMatches( content.replace( "ns1.", "ns2." ), answer ) );
+    }
+
+    /**
+     * never answers
+     */
+    private static class SilentClient implements DnsClient
+    {
+        public CompletableFuture<Message> sendAsync( Message query )
+        {
+            return new CompletableFuture<>();
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+
+    /**
+     * every TXT lookup succeeds
+     */
+    private static class TxtClient implements DnsClient
+    {
+        public CompletableFuture<Message> sendAsync( Message query )
+        {
+            Record question = query.getQuestion();
+            Message answer = new Message( query.getHeader().getID() );
+            answer.addRecord( new TXTRecord( question.getName(), DClass.IN, 300, "x" ), Section.ANSWER );
+            return CompletableFuture.completedFuture( answer );
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+}
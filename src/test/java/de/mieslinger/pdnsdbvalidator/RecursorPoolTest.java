@@ -0,0 +1,180 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for RecursorPool.
+ */
+public class RecursorPoolTest
+    extends TestCase
+{
+    public RecursorPoolTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RecursorPoolTest.class );
+    }
+
+    public void testTimeoutIsRetriedOnAnotherRecursor() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.WEIGHTED, 10, 1000, 1, 5, 10000, new Metrics() );
+        StubClient dead = new StubClient( false );
+        StubClient alive = new StubClient( true );
+        pool.add( "dead", 1, 0, dead );
+        pool.add( "alive", 1, 0, alive );
+
+        for ( int i = 0; i < 20; i++ )
+        {
+            assertNotNull( pool.sendAsync( query() ).get( 5, TimeUnit.SECONDS ) );
+        }
+        assertEquals( 20, alive.queries );
+        assertEquals( 0, pool.getInFlight() );
+    }
+
+    public void testFailingRecursorIsEjected() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.LEAST_LATENCY, 10, 1000, 0, 3, 60000, new Metrics() );
+        StubClient dead = new StubClient( false );
+        StubClient alive = new StubClient( true );
+        pool.add( "dead", 1, 0, dead );
+        pool.add( "alive", 1, 0, alive );
+
+        // its timeouts count as the latency the unmeasured one starts at, the first wins the tie until it is ejected
+        for ( int i = 0; i < 3; i++ )
+        {
+            try
+            {
+                pool.sendAsync( query() ).join();
+                fail( "no retries configured" );
+            }
+            catch ( Exception e )
+            {
+                assertTrue( e.getCause() instanceof SocketTimeoutException );
+            }
+        }
+        for ( int i = 0; i < 10; i++ )
+        {
+            pool.sendAsync( query() ).join();
+        }
+        assertEquals( 3, dead.queries );
+        assertEquals( 10, alive.queries );
+    }
+
+    public void testUnmeasuredRecursorDoesNotTakeTheWindow() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.LEAST_LATENCY, 20, 1000, 0, 3, 60000, new Metrics() );
+        StubClient silent = new StubClient( true );
+        silent.hangs = true;
+        StubClient alive = new StubClient( true );
+        pool.add( "silent", 1, 0, silent );
+        pool.add( "alive", 1, 0, alive );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            pool.sendAsync( query() );
+        }
+        // one query in flight makes it twice as slow as the other one
+        assertEquals( 1, silent.queries );
+        assertEquals( 9, alive.queries );
+    }
+
+    public void testRecursorWithoutTokensIsSkipped() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.LEAST_LATENCY, 10, 1000, 0, 3, 60000, new Metrics() );
+        StubClient limited = new StubClient( true );
+        StubClient other = new StubClient( true );
+        pool.add( "limited", 1, 2, limited );
+        pool.add( "other", 1, 0, other );
+
+        for ( int i = 0; i < 10; i++ )
+        {
+            pool.sendAsync( query() ).join();
+        }
+        assertTrue( limited.queries <= 3 );
+        assertEquals( 10, limited.queries + other.queries );
+    }
+
+    public void testTimeoutIsRetriedOnTheOnlyRecursor() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.WEIGHTED, 10, 1000, 2, 5, 10000, new Metrics() );
+        StubClient flaky = new StubClient( true );
+        flaky.timeouts = 2;
+        pool.add( "flaky", 1, 0, flaky );
+
+        assertNotNull( pool.sendAsync( query() ).get( 5, TimeUnit.SECONDS ) );
+        assertEquals( 3, flaky.queries );
+    }
+
+    public void testCallerWaitsForTheBucketToRefill() throws Exception
+    {
+        RecursorPool pool = new RecursorPool( RecursorPool.WEIGHTED, 10, 1000, 0, 3, 60000, new Metrics() );
+        StubClient limited = new StubClient( true );
+        pool.add( "limited", 1, 10, limited );
+
+        long start = System.nanoTime();
+        // a burst of 10, the other 5 wait for the refill
+        for ( int i = 0; i < 15; i++ )
+        {
+            pool.sendAsync( query() ).get( 5, TimeUnit.SECONDS );
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start );
+        assertEquals( 15, limited.queries );
+        assertTrue( "took " + millis + "ms", millis >= 400 && millis < 2000 );
+    }
+
+    private static Message query() throws Exception
+    {
+        return Message.newQuery( Record.newRecord( Name.fromString( "example.com." ), Type.SOA, DClass.IN ) );
+    }
+
+    private static class StubClient implements DnsClient
+    {
+        private final boolean answers;
+        private volatile int queries = 0;
+        // time out first, then answer
+        private volatile int timeouts = 0;
+        // never completes
+        private volatile boolean hangs = false;
+
+        StubClient( boolean answers )
+        {
+            this.answers = answers;
+        }
+
+        public CompletableFuture<Message> sendAsync( Message query )
+        {
+            queries++;
+            CompletableFuture<Message> f = new CompletableFuture<>();
+            if ( hangs )
+            {
+                return f;
+            }
+            if ( answers && queries > timeouts )
+            {
+                f.complete( query );
+            }
+            else
+            {
+                f.completeExceptionally( new SocketTimeoutException( "timed out" ) );
+            }
+            return f;
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * Unit test for ResolverCache.
+ */
+public class ResolverCacheTest
+    extends TestCase
+{
+    public ResolverCacheTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ResolverCacheTest.class );
+    }
+
+    public void testPositiveAnswerIsCached() throws Exception
+    {
+        Name name = Name.fromString( "www.example.com." );
+        StubClient stub = new StubClient();
+        ResolverCache cache = new ResolverCache( stub, 10, 3600, 30 );
+
+        CompletableFuture<Message> first = cache.query( name, Type.TXT );
+        assertFalse( first.isDone() );
+
+        Message answer = Message.newQuery( Record.newRecord( name, Type.TXT, DClass.IN ) );
+        answer.addRecord( new TXTRecord( name, DClass.IN, 300, "v=spf1 -all" ), Section.ANSWER );
+        stub.futures.get( 0 ).complete( answer );
+        assertSame( answer, first.join() );
+
+        assertSame( answer, cache.query( name, Type.TXT ).join() );
+        assertEquals( 1, stub.futures.size() );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( 1, cache.getMisses() );
+    }
+
+    public void testConcurrentQueriesAreCoalesced() throws Exception
+    {
+        Name name = Name.fromString( "example.com." );
+        StubClient stub = new StubClient();
+        ResolverCache cache = new ResolverCache( stub, 10, 3600, 30 );
+
+        CompletableFuture<Message> a = cache.query( name, Type.SOA );
+        CompletableFuture<Message> b = cache.query( name, Type.SOA );
+
+        assertEquals( 1, stub.futures.size() );
+        assertSame( a, b );
+        assertEquals( 1, cache.getCoalesced() );
+    }
+
+    public void testNegativeTtlFromAuthoritySOA() throws Exception
+    {
+        Name name = Name.fromString( "nx.example.com." );
+        Name zone = Name.fromString( "example.com." );
+        ResolverCache cache = new ResolverCache( new StubClient(), 10, 3600, 30 );
+
+        Message nx = Message.newQuery( Record.newRecord( name, Type.TXT, DClass.IN ) );
+        nx.getHeader().setRcode( Rcode.NXDOMAIN );
+        nx.addRecord( new SOARecord( zone, DClass.IN, 3600, Name.fromString( "ns.example.com." ),
+                Name.fromString( "hostmaster.example.com." ), 1, 7200, 900, 604800, 120 ), Section.AUTHORITY );
+        assertEquals( 120, cache.ttlOf( nx ) );
+
+        Message servfail = Message.newQuery( Record.newRecord( name, Type.TXT, DClass.IN ) );
+        servfail.getHeader().setRcode( Rcode.SERVFAIL );
+        assertEquals( 30, cache.ttlOf( servfail ) );
+
+        Message nxWithoutSOA = Message.newQuery( Record.newRecord( name, Type.TXT, DClass.IN ) );
+        nxWithoutSOA.getHeader().setRcode( Rcode.NXDOMAIN );
+        assertEquals( 0, cache.ttlOf( nxWithoutSOA ) );
+    }
+
+    private static class StubClient implements DnsClient
+    {
+        private final List<CompletableFuture<Message>> futures = new ArrayList<>();
+
+        public CompletableFuture<Message> sendAsync( Message query )
+        {
+            CompletableFuture<Message> f = new CompletableFuture<>();
+            futures.add( f );
+            return f;
+        }
+
+        public void shutdown()
+        {
+        }
+    }
+}
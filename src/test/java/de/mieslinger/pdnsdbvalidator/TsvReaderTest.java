@@ -0,0 +1,141 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for TsvReader.
+ */
+public class TsvReaderTest
+    extends TestCase
+{
+    public TsvReaderTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( TsvReaderTest.class );
+    }
+
+    public void testEscapesAndNull() throws Exception
+    {
+        File file = write( "1\texample.com\t\\N\n"
+                + "2\t\"v=spf1 \\\\ a\\tb\"\tline\\\nbreak\n"
+                + "-3\t\t\\N" );
+        try
+        {
+            TsvReader r = new TsvReader( file.getPath(), 64 );
+            assertTrue( r.next() );
+            assertEquals( 1, r.getLong( 0 ) );
+            assertEquals( "example.com", r.getString( 1 ) );
+            assertTrue( r.isNull( 2 ) );
+            assertNull( r.getString( 2 ) );
+
+            assertTrue( r.next() );
+            assertEquals( "\"v=spf1 \\ a\tb\"", r.getString( 1 ) );
+            // into outfile escapes the newline itself
+            assertEquals( "line\nbreak", r.getString( 2 ) );
+
+            // no newline at the end
+            assertTrue( r.next() );
+            assertEquals( 3, r.getFieldCount() );
+            assertEquals( -3, r.getLong( 0 ) );
+            assertEquals( "", r.getString( 1 ) );
+            assertEquals( 0, r.getLong( 2 ) );
+            assertEquals( 3, r.getLine() );
+            assertFalse( r.next() );
+            r.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testBareNullFromMysqlBatch() throws Exception
+    {
+        File file = write( "id\tname\tmaster\n"
+                + "7\texample.com\tNULL\n"
+                + "NULL\tNULLS\t\\NULL\n" );
+        try
+        {
+            TsvReader r = new TsvReader( file.getPath(), 64, true );
+            assertTrue( r.next() );
+            assertTrue( r.next() );
+            assertEquals( 7, r.getLong( 0 ) );
+            assertTrue( r.isNull( 2 ) );
+            assertNull( r.getString( 2 ) );
+
+            assertTrue( r.next() );
+            assertEquals( 0, r.getLong( 0 ) );
+            assertEquals( "NULLS", r.getString( 1 ) );
+            // an escaped N followed by ULL is text
+            assertFalse( r.isNull( 2 ) );
+            assertEquals( "NULL", r.getString( 2 ) );
+            assertFalse( r.next() );
+            r.close();
+
+            // mysqldump --tab writes \N, a bare NULL there is a TXT record's text
+            r = new TsvReader( file.getPath(), 64 );
+            assertTrue( r.next() );
+            assertTrue( r.next() );
+            assertFalse( r.isNull( 2 ) );
+            assertEquals( "NULL", r.getString( 2 ) );
+            r.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    public void testRowsAcrossChunks() throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for ( int i = 0; i < 1000; i++ )
+        {
+            sb.append( i ).append( '\t' ).append( "name-" ).append( i ).append( '\n' );
+        }
+        // longer than a chunk
+        sb.append( "1000\t" );
+        for ( int i = 0; i < 100; i++ )
+        {
+            sb.append( "0123456789" );
+        }
+        sb.append( '\n' );
+        File file = write( sb.toString() );
+        try
+        {
+            TsvReader r = new TsvReader( file.getPath(), 37 );
+            for ( int i = 0; i < 1000; i++ )
+            {
+                assertTrue( r.next() );
+                assertEquals( i, r.getLong( 0 ) );
+                assertEquals( "name-" + i, r.getString( 1 ) );
+            }
+            assertTrue( r.next() );
+            assertEquals( 1000, r.getString( 1 ).length() );
+            assertFalse( r.next() );
+            r.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    static File write( String content ) throws Exception
+    {
+        File file = File.createTempFile( "pdnsdbvalidator", ".txt" );
+        FileOutputStream out = new FileOutputStream( file );
+        out.write( content.getBytes( StandardCharsets.UTF_8 ) );
+        out.close();
+        return file;
+    }
+}
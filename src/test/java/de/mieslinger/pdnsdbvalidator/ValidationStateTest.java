@@ -0,0 +1,79 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for ValidationState.
+ */
+public class ValidationStateTest
+    extends TestCase
+{
+    private File file;
+
+    public ValidationStateTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ValidationStateTest.class );
+    }
+
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile( "pdnsdbvalidator", ".state" );
+        file.delete();
+    }
+
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    public void testVerdictsSurviveReopen() throws Exception
+    {
+        ValidationState state = new ValidationState( file.getPath() );
+        // enough entries to make the tables grow
+        for ( long id = 1; id <= 100000; id++ )
+        {
+            state.record( id, id * 31, ValidationState.OK );
+        }
+        state.record( 5, 99, ValidationState.BROKEN );
+        state.record( 6, 6 * 31, ValidationState.INCONCLUSIVE );
+        state.close();
+
+        state = new ValidationState( file.getPath() );
+        assertEquals( 100000, state.size() );
+        assertTrue( state.isCurrent( 1, 31, 60000 ) );
+        assertTrue( state.isCurrent( 5, 99, 60000 ) );
+        assertFalse( "fingerprint changed", state.isCurrent( 7, 8, 60000 ) );
+        assertFalse( "inconclusive", state.isCurrent( 6, 6 * 31, 60000 ) );
+        assertFalse( "unknown", state.isCurrent( 100001, 0, 60000 ) );
+        assertFalse( "too old", state.isCurrent( 2, 62, -1 ) );
+        state.close();
+        // compacted to one record per domain
+        assertEquals( 100000L * 25, file.length() );
+    }
+
+    public void testTornRecordIsIgnored() throws Exception
+    {
+        ValidationState state = new ValidationState( file.getPath() );
+        state.record( 1, 1, ValidationState.OK );
+        state.record( 2, 2, ValidationState.OK );
+        state.close();
+
+        RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+        raf.setLength( raf.length() - 3 );
+        raf.close();
+
+        state = new ValidationState( file.getPath() );
+        assertEquals( 1, state.size() );
+        assertTrue( state.isCurrent( 1, 1, 60000 ) );
+        state.close();
+    }
+}
@@ -0,0 +1,62 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for WindowScheduler.
+ */
+public class WindowSchedulerTest
+    extends TestCase
+{
+    public WindowSchedulerTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( WindowSchedulerTest.class );
+    }
+
+    public void testEveryDomainOnceSpreadEvenly()
+    {
+        // one hour in slots of ten seconds
+        WindowScheduler scheduler = new WindowScheduler( null, new LongRingBuffer( 16 ), null, 3600000, 10000, 60000 );
+        int slots = scheduler.getSlots();
+        assertEquals( 360, slots );
+
+        int n = 360000;
+        long[] ids = new long[n];
+        for ( int i = 0; i < n; i++ )
+        {
+            // consecutive ids, as auto_increment hands them out
+            ids[i] = i + 1;
+        }
+        scheduler.setIds( ids, n );
+
+        boolean[] seen = new boolean[n + 1];
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for ( int s = 0; s < slots; s++ )
+        {
+            long[] due = scheduler.getSlot( s );
+            min = Math.min( min, due.length );
+            max = Math.max( max, due.length );
+            for ( long id : due )
+            {
+                assertFalse( "twice: " + id, seen[(int) id] );
+                seen[(int) id] = true;
+                assertEquals( s, WindowScheduler.slot( id, slots ) );
+            }
+        }
+        for ( int i = 1; i <= n; i++ )
+        {
+            assertTrue( "missing: " + i, seen[i] );
+        }
+        // 1000 per slot on average
+        assertTrue( "min " + min, min > 850 );
+        assertTrue( "max " + max, max < 1150 );
+    }
+}
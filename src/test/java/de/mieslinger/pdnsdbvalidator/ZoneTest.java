@@ -0,0 +1,49 @@
+package de.mieslinger.pdnsdbvalidator;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for Zone.
+ */
+public class ZoneTest
+    extends TestCase
+{
+    public ZoneTest( String testName )
+    {
+        super( testName );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ZoneTest.class );
+    }
+
+    public void testDroppedRecordsKeepFingerprint()
+    {
+        Zone kept = new Zone( 1, "example.com" );
+        Zone dropped = new Zone( 1, "example.com" );
+        for ( int i = 0; i < 10; i++ )
+        {
+            Zone.Row row = new Zone.Row( i, "h" + i + ".example.com", 3600, "A", 0, "192.0.2." + i );
+            kept.addRecord( row );
+            dropped.addRecord( row );
+            if ( i == 4 )
+            {
+                // after the first page
+                dropped.dropRecords();
+            }
+        }
+        dropped.addRecord( new Zone.Row( 10, "example.com", 3600, "SOA", 0, "ns1.example.com. hostmaster.example.com. 1 2 3 4 5" ) );
+        kept.addRecord( new Zone.Row( 10, "example.com", 3600, "SOA", 0, "ns1.example.com. hostmaster.example.com. 1 2 3 4 5" ) );
+        kept.setNoRecords();
+        dropped.setNoRecords();
+
+        assertEquals( kept.fingerprint(), dropped.fingerprint() );
+        assertTrue( kept.hasRecords() );
+        assertFalse( dropped.hasRecords() );
+        assertTrue( dropped.isDropped() );
+        assertEquals( 1, dropped.getSOARows().size() );
+    }
+}